@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Annotation parsing, done for every job and job step claimed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AnnotationUtilBenchmark
+{
+    private final String job_description = "Nightly rollup of the order tables.\n" +
+            "@JOB_TIMEOUT=2 hr;\n" +
+            "@EMAIL_ON=FAIL;ABORTED;\n" +
+            "@EMAIL_TO=ops@example.com;\n" +
+            "@EMAIL_SUBJECT=Job ~job_name~ ~status~;\n" +
+            "@MUTEX=orders;\n" +
+            "@LOG_RETENTION_COUNT=100;";
+
+    @Benchmark
+    public Map<String, String> parseAnnotations()
+    {
+        return AnnotationUtil.parseAnnotations(job_description);
+    }
+
+    @Benchmark
+    public Long parseTimeValue()
+    {
+        return AnnotationUtil.parseValue(Job.JobAnnotations.JOB_TIMEOUT, "2 hr", Long.class);
+    }
+
+    @Benchmark
+    public Boolean parseBooleanValue()
+    {
+        return AnnotationUtil.parseValue(JobStep.JobStepAnnotations.RUN_IN_PARALLEL, "true", Boolean.class);
+    }
+}
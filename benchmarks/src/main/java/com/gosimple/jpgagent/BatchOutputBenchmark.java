@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Capturing the output of a batch job step, from an in memory process so only the capture is measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BatchOutputBenchmark
+{
+    @Param({"10", "10000"})
+    public int lines;
+
+    private byte[] output;
+    private byte[] error_output;
+
+    @Setup
+    public void setup()
+    {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < lines; i++)
+        {
+            builder.append("NOTICE:  processed batch ").append(i).append(" of ").append(lines).append(", 1000 rows\n");
+        }
+        output = builder.toString().getBytes(StandardCharsets.UTF_8);
+        error_output = "WARNING:  slow statement\n".getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public String readOutput() throws Exception
+    {
+        return JobStep.readOutput(new FinishedProcess(output, error_output));
+    }
+
+    private static class FinishedProcess extends Process
+    {
+        private final byte[] output;
+        private final byte[] error_output;
+
+        private FinishedProcess(final byte[] output, final byte[] error_output)
+        {
+            this.output = output;
+            this.error_output = error_output;
+        }
+
+        @Override
+        public OutputStream getOutputStream()
+        {
+            return new ByteArrayOutputStream();
+        }
+
+        @Override
+        public InputStream getInputStream()
+        {
+            return new ByteArrayInputStream(output);
+        }
+
+        @Override
+        public InputStream getErrorStream()
+        {
+            return new ByteArrayInputStream(error_output);
+        }
+
+        @Override
+        public int waitFor()
+        {
+            return 0;
+        }
+
+        @Override
+        public int exitValue()
+        {
+            return 0;
+        }
+
+        @Override
+        public void destroy()
+        {
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Email token rendering, done for every notification sent.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EmailTemplateBenchmark
+{
+    private final String body = "Job ~job_name~ step ~job_step_name~ finished with status ~status~ on ~host~.\n" +
+            "Started: ~start_time~, took ~duration~, result ~step_result~.\n" +
+            "Output:\n~output~";
+    private final Map<String, String> token_values = new HashMap<>();
+    private EmailTemplate template;
+
+    @Setup
+    public void setup()
+    {
+        token_values.put(Config.INSTANCE.job_name_token, "Nightly rollup");
+        token_values.put(Config.INSTANCE.job_step_name_token, "Rollup orders");
+        token_values.put(Config.INSTANCE.status_token, "FAIL");
+        token_values.put(Config.INSTANCE.host_token, "db-agent-1");
+        token_values.put(Config.INSTANCE.start_time_token, "2016-03-01 02:00:00.0");
+        token_values.put(Config.INSTANCE.duration_token, EmailTemplate.formatDuration(83125));
+        token_values.put(Config.INSTANCE.step_result_token, "-1");
+        token_values.put(Config.INSTANCE.output_token, "ERROR: deadlock detected");
+        template = EmailTemplate.compile(body);
+    }
+
+    @Benchmark
+    public String render()
+    {
+        return template.render(token_values);
+    }
+
+    @Benchmark
+    public String compileAndRender()
+    {
+        return EmailTemplate.compile(body).render(token_values);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Overhead of dispatching tasks through the JobRegistry: registering each, running it in the thread pool and
+ * waiting for it, with tasks that do nothing.  No Job or JobStep is run, as they write to the database, so this
+ * measures the registry and pool they dispatch through rather than job orchestration itself.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JobRegistryDispatchBenchmark
+{
+    @Param({"1", "10"})
+    public int steps;
+
+    private final CancellableRunnable no_op_step = new CancellableRunnable()
+    {
+        @Override
+        public void run()
+        {
+        }
+
+        @Override
+        public void cancelTask()
+        {
+        }
+
+        @Override
+        public void cancelledBeforeStart()
+        {
+        }
+    };
+
+    @Benchmark
+    public void sequentialSteps() throws Exception
+    {
+        for (int step_id = 1; step_id <= steps; step_id++)
+        {
+            JobRegistry.INSTANCE.submitStep(1, step_id, "step", no_op_step).get();
+        }
+    }
+
+    @Benchmark
+    public void parallelSteps() throws Exception
+    {
+        final List<Future<?>> futures = new ArrayList<>(steps);
+        for (int step_id = 1; step_id <= steps; step_id++)
+        {
+            futures.add(JobRegistry.INSTANCE.submitStep(1, step_id, "step", no_op_step));
+        }
+        for (final Future<?> future : futures)
+        {
+            future.get();
+        }
+    }
+}
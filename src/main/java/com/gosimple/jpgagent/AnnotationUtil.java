@@ -163,6 +163,13 @@ public class AnnotationUtil
             {
                 return 1000 * 60 * 60;
             }
+            case "DAY":
+            case "D":
+            case "day":
+            case "d":
+            {
+                return 1000 * 60 * 60 * 24;
+            }
             default:
             {
                 throw new IllegalArgumentException();
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with jitter for retrying against the database.
+ * The ceiling starts at the minimum wait and doubles each attempt up to the maximum wait, and each wait is picked
+ * at random between half of the ceiling and the ceiling, so agents which lost the database together don't retry
+ * in lockstep.
+ */
+public class Backoff
+{
+    private final long min_wait;
+    private final long max_wait;
+    private int attempts = 0;
+
+    /**
+     * @param min_wait milliseconds.
+     * @param max_wait milliseconds.
+     */
+    public Backoff(final long min_wait, final long max_wait)
+    {
+        this.min_wait = Math.max(1, min_wait);
+        this.max_wait = Math.max(this.min_wait, max_wait);
+    }
+
+    /**
+     * Returns the time to wait before the next attempt, and counts the attempt.
+     *
+     * @return milliseconds.
+     */
+    public synchronized long nextWait()
+    {
+        return nextWait(ThreadLocalRandom.current().nextDouble());
+    }
+
+    synchronized long nextWait(final double random)
+    {
+        final long ceiling = getCeiling();
+        if (attempts < Integer.MAX_VALUE)
+        {
+            attempts++;
+        }
+        final long floor = ceiling / 2;
+        return Math.max(1, floor + (long) (random * (ceiling - floor)));
+    }
+
+    /**
+     * Starts over from the minimum wait, after a successful attempt.
+     */
+    public synchronized void reset()
+    {
+        attempts = 0;
+    }
+
+    /**
+     * @return failed attempts since the last reset.
+     */
+    public synchronized int getAttempts()
+    {
+        return attempts;
+    }
+
+    private long getCeiling()
+    {
+        long ceiling = min_wait;
+        for (int i = 0; i < attempts && ceiling < max_wait; i++)
+        {
+            ceiling *= 2;
+        }
+        return Math.min(ceiling, max_wait);
+    }
+}
@@ -28,4 +28,10 @@ public interface CancellableRunnable extends Runnable
      * Should stop any long running process the thread was doing to exit gracefully as quickly as possible.
      */
     void cancelTask();
+
+    /**
+     * Called instead of run() when the task was cancelled before it started, to release whatever was acquired for it
+     * when it was dispatched.
+     */
+    void cancelledBeforeStart();
 }
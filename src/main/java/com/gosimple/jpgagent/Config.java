@@ -39,6 +39,11 @@ public enum Config
     protected String status_token = "~status~";
     protected String job_name_token = "~job_name~";
     protected String job_step_name_token = "~job_step_name~";
+    protected String duration_token = "~duration~";
+    protected String start_time_token = "~start_time~";
+    protected String step_result_token = "~step_result~";
+    protected String output_token = "~output~";
+    protected String host_token = "~host~";
 
     @Option(name = "--help", help = true, required = false, usage = "Help")
     protected boolean help = false;
@@ -56,7 +61,7 @@ public enum Config
     protected String db_database;
     @Option(name = "-t", required = false, usage = "Job poll interval (ms).", metaVar = "Integer")
     protected long job_poll_interval = 10000;
-    @Option(name = "-r", required = false, usage = "Connection retry interval (ms).", metaVar = "Integer")
+    @Option(name = "-r", required = false, usage = "Maximum wait (ms) between attempts to reconnect to the database.", metaVar = "Integer")
     protected long connection_retry_interval = 30000;
     @Option(name = "-w", required = false, usage = "Size of the thread pool to execute tasks.  Each job and job step can take up to a thread in the pool at once.", metaVar = "Integer")
     protected int thread_pool_size = 40;
@@ -72,6 +77,76 @@ public enum Config
     protected String smtp_password;
     @Option(name = "--smtp-ssl", required = false, depends = {"--smtp-host"}, usage = "Is SSL enabled for the smtp connection.", metaVar = "Boolean")
     protected Boolean smtp_ssl = true;
+    @Option(name = "--start-rate", required = false, usage = "Maximum job starts per second across all jobs, 0 is unlimited.", metaVar = "Double")
+    protected double start_rate = 0;
+    @Option(name = "--start-burst", required = false, usage = "Number of job starts allowed at once before --start-rate applies.", metaVar = "Integer")
+    protected int start_burst = 1;
+    @Option(name = "--start-rate-groups", required = false, usage = "Start rates per job class or START_RATE_GROUP annotation, in the format: name=rate[:burst][;...]", metaVar = "String")
+    protected String start_rate_groups;
+    @Option(name = "--start-jitter", required = false, usage = "Window (ms) to spread job starts over, offset deterministically by job id.  0 is off.", metaVar = "Integer")
+    protected long start_jitter = 0;
+    @Option(name = "--heartbeat-interval", required = false, usage = "Interval (ms) between agent heartbeats and checks for dead agents.", metaVar = "Integer")
+    protected long heartbeat_interval = 5000;
+    @Option(name = "--agent-lease", required = false, usage = "Time (ms) without a heartbeat after which an agent is dead and its jobs are released.", metaVar = "Integer")
+    protected long agent_lease = 30000;
+    @Option(name = "--cleanup-batch-size", required = false, usage = "Number of log rows updated per statement when cleaning up after dead agents.", metaVar = "Integer")
+    protected int cleanup_batch_size = 1000;
+    @Option(name = "--maintenance-interval", required = false, usage = "Interval (ms) between runs of cluster wide maintenance by the leader agent.", metaVar = "Integer")
+    protected long maintenance_interval = 60000;
+    @Option(name = "--log-retention-age", required = false, usage = "Default age (ms) after which job logs are pruned, 0 keeps them forever.", metaVar = "Integer")
+    protected long log_retention_age = 0;
+    @Option(name = "--log-retention-count", required = false, usage = "Default number of job logs kept per job, 0 is unlimited.", metaVar = "Integer")
+    protected int log_retention_count = 0;
+    @Option(name = "--log-retention-batch-size", required = false, usage = "Number of job logs deleted per statement when pruning.", metaVar = "Integer")
+    protected int log_retention_batch_size = 500;
+    @Option(name = "--log-retention-pause", required = false, usage = "Pause (ms) between batches when pruning job logs.", metaVar = "Integer")
+    protected long log_retention_pause = 100;
+    @Option(name = "--optimize-schema", required = false, usage = "Create partial indexes on the pgAgent tables to support jpgAgent's queries, and log their plans.")
+    protected boolean optimize_schema = false;
+    @Option(name = "--sharding", required = false, usage = "Cooperate with other agents, only claiming a share of due jobs proportional to this agent's capacity.")
+    protected boolean sharding = false;
+    @Option(name = "--shard-capacity", required = false, depends = {"--sharding"}, usage = "Capacity registered for this agent when sharding, 0 uses the thread pool size.", metaVar = "Integer")
+    protected int shard_capacity = 0;
+    @Option(name = "--shard-steal-after", required = false, depends = {"--sharding"}, usage = "Time (ms) a job owned by another agent can be overdue before this agent claims it.", metaVar = "Integer")
+    protected long shard_steal_after = 60000;
+    @Option(name = "--spool-file", required = false, usage = "Journal file job and job step outcomes are spooled to until written to the database.  Only one agent can use a spool file at a time.  Defaults to jpgagent-<host>-<port>-<database>.spool in the temp directory.", metaVar = "String")
+    protected String spool_file = null;
+    @Option(name = "--spool-size", required = false, usage = "Initial size (bytes) of the spool journal, it grows as needed.", metaVar = "Integer")
+    protected int spool_size = 16777216;
+    @Option(name = "--reconnect-wait", required = false, usage = "Initial wait (ms) before reconnecting to the database, doubling each failed attempt up to the connection retry interval.", metaVar = "Integer")
+    protected long reconnect_wait = 50;
+    @Option(name = "--shutdown-grace", required = false, usage = "Time (ms) running jobs are given to finish on shutdown before they are killed.", metaVar = "Integer")
+    protected long shutdown_grace = 30000;
+    @Option(name = "--replica-hosts", required = false, usage = "Replica hosts READ_ONLY job steps are spread over, in the format: host[:port][,...]", metaVar = "String")
+    protected String replica_hosts = null;
+    @Option(name = "--notify-queue-size", required = false, usage = "Number of notifications which can wait to be delivered per sink, further notifications are dropped.", metaVar = "Integer")
+    protected int notify_queue_size = 1000;
+    @Option(name = "--notify-retries", required = false, usage = "Number of times delivering notifications is retried before they fail.", metaVar = "Integer")
+    protected int notify_retries = 3;
+    @Option(name = "--notify-retry-wait", required = false, usage = "Initial time (ms) waited before retrying a failed notification delivery, doubled each retry.", metaVar = "Integer")
+    protected long notify_retry_wait = 1000;
+    @Option(name = "--notify-retry-max-wait", required = false, usage = "Maximum time (ms) waited before retrying a failed notification delivery.", metaVar = "Integer")
+    protected long notify_retry_max_wait = 30000;
+    @Option(name = "--notify-batch-size", required = false, usage = "Maximum number of notifications delivered to a sink at once.", metaVar = "Integer")
+    protected int notify_batch_size = 100;
+    @Option(name = "--webhook-url", required = false, usage = "Url notifications are posted to by the webhook sink, as a JSON array.", metaVar = "String")
+    protected String webhook_url = null;
+    @Option(name = "--notify-file", required = false, usage = "File notifications are appended to by the file sink, one JSON object per line.", metaVar = "String")
+    protected String notify_file = null;
+    @Option(name = "--email-digest-window", required = false, usage = "Window (ms) email is coalesced over per recipient, 0 is off.  Email over the immediate limit in a window is sent as one digest when the window ends.", metaVar = "Integer")
+    protected long email_digest_window = 0;
+    @Option(name = "--email-digest-immediate", required = false, usage = "Number of emails sent right away per recipient in a digest window.", metaVar = "Integer")
+    protected int email_digest_immediate = 1;
+    @Option(name = "--email-output-limit", required = false, usage = "Number of characters of step output included by the ~output~ email token.", metaVar = "Integer")
+    protected int email_output_limit = 4000;
+    @Option(name = "--metrics-port", required = false, usage = "Port metrics are served on in the Prometheus text format at /metrics, 0 is off.", metaVar = "Integer")
+    protected int metrics_port = 0;
+    @Option(name = "--metrics-bind", required = false, usage = "Address metrics are served on, use 0.0.0.0 to serve them on all interfaces.", metaVar = "String")
+    protected String metrics_bind = "127.0.0.1";
+    @Option(name = "--run-stats", required = false, usage = "Record the scheduled time, start lag, queue wait and end to end duration of every job run in pgagent.jpgagent_run_stats.")
+    protected boolean run_stats = false;
+    @Option(name = "--trace-file", required = false, usage = "File spans of job execution are appended to in the Chrome trace event format, for chrome://tracing or Perfetto.", metaVar = "String")
+    protected String trace_file = null;
 
 
 }
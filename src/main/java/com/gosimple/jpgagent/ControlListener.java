@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * Listens for control commands sent with NOTIFY, and dispatches them as soon as they arrive.
+ * Runs on its own thread blocked on the listener connection, so the main loop doesn't need to poll for them.
+ */
+public enum ControlListener
+{
+    INSTANCE;
+
+    // Channels commands are received on
+    static final String[] CHANNELS = {
+            "jpgagent_kill_job",
+            "jpgagent_kill_step",
+            "jpgagent_pause",
+            "jpgagent_resume",
+            "jpgagent_drain",
+            "jpgagent_run_now",
+            "jpgagent_status"
+    };
+
+    /**
+     * Starts the listener thread.
+     */
+    public void start()
+    {
+        final Thread listener_thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                listen();
+            }
+        }, "ControlListener");
+        listener_thread.setDaemon(true);
+        listener_thread.start();
+    }
+
+    private void listen()
+    {
+        while (true)
+        {
+            try
+            {
+                if (!Database.INSTANCE.checkListenerConnection())
+                {
+                    Thread.sleep(Math.max(1, Database.INSTANCE.getListenerRetryWait()));
+                    continue;
+                }
+
+                // Wakes up at least every heartbeat interval so a dead connection is noticed.
+                final PGConnection pg_connection = Database.INSTANCE.getListenerConnection().unwrap(PGConnection.class);
+                final PGNotification notifications[] = pg_connection.getNotifications((int) Math.min(Integer.MAX_VALUE, Math.max(1, Config.INSTANCE.heartbeat_interval)));
+                if (null != notifications)
+                {
+                    for (PGNotification notification : notifications)
+                    {
+                        dispatch(notification);
+                    }
+                }
+            }
+            catch (final InterruptedException e)
+            {
+                return;
+            }
+            catch (final SQLException e)
+            {
+                Config.INSTANCE.logger.error("Error encountered listening for notifications.");
+                Config.INSTANCE.logger.error(e.getMessage());
+            }
+            catch (final Exception e)
+            {
+                Config.INSTANCE.logger.error("Error encountered processing notifications.");
+                Config.INSTANCE.logger.error(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Runs the command for a notification.
+     *
+     * @param notification
+     */
+    private void dispatch(final PGNotification notification)
+    {
+        Config.INSTANCE.logger.debug("Received notification on channel: {} with payload: {}.", notification.getName(), notification.getParameter());
+        final String payload = notification.getParameter() == null ? "" : notification.getParameter().trim();
+        switch (notification.getName())
+        {
+            case "jpgagent_kill_job":
+            {
+                final Integer job_id = parseId(notification.getName(), payload);
+                if (job_id != null)
+                {
+                    JPGAgent.killJob(job_id);
+                }
+                break;
+            }
+            case "jpgagent_kill_step":
+            {
+                final Integer step_id = parseId(notification.getName(), payload);
+                if (step_id != null)
+                {
+                    JPGAgent.killStep(step_id);
+                }
+                break;
+            }
+            case "jpgagent_pause":
+            {
+                if (isTarget(payload))
+                {
+                    JPGAgent.pause();
+                }
+                break;
+            }
+            case "jpgagent_resume":
+            {
+                if (isTarget(payload))
+                {
+                    JPGAgent.resume();
+                }
+                break;
+            }
+            case "jpgagent_drain":
+            {
+                if (isTarget(payload))
+                {
+                    JPGAgent.drain();
+                }
+                break;
+            }
+            case "jpgagent_run_now":
+            {
+                final Integer job_id = parseId(notification.getName(), payload);
+                if (job_id != null)
+                {
+                    runNow(job_id);
+                }
+                break;
+            }
+            case "jpgagent_status":
+            {
+                if (isTarget(payload))
+                {
+                    JPGAgent.logStatus();
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Makes a job due immediately and wakes the main loop to claim it.
+     * Every agent receives the notification and wakes, so whichever agent is allowed to claim the job picks it up,
+     * but only the maintenance leader makes the job due.
+     *
+     * @param job_id
+     */
+    private void runNow(final int job_id)
+    {
+        try
+        {
+            if (!Maintenance.INSTANCE.isLeader())
+            {
+                JPGAgent.wake();
+                return;
+            }
+        }
+        catch (final SQLException e)
+        {
+            Config.INSTANCE.logger.error("An error occurred checking for maintenance leadership.");
+            Config.INSTANCE.logger.error(e.getMessage());
+            JPGAgent.wake();
+            return;
+        }
+        // Back dated by the start jitter so the job isn't held back by it.
+        final String run_now_sql =
+                "UPDATE pgagent.pga_job " +
+                        "SET jobnextrun = now() - ? * interval '1 millisecond' " +
+                        "WHERE jobid = ? " +
+                        "AND jobenabled " +
+                        "AND jobagentid IS NULL;";
+        try (final PreparedStatement statement = Database.INSTANCE.getMainConnection().prepareStatement(run_now_sql))
+        {
+            statement.setLong(1, Config.INSTANCE.start_jitter);
+            statement.setInt(2, job_id);
+            if (statement.executeUpdate() == 0)
+            {
+                Config.INSTANCE.logger.info("Run now request for job_id: {} was submitted, but the job is disabled, running, or doesn't exist.", job_id);
+            }
+            else
+            {
+                Config.INSTANCE.logger.info("Running job_id: {} now.", job_id);
+            }
+        }
+        catch (final SQLException e)
+        {
+            Config.INSTANCE.logger.error("An error occurred making job_id: {} due.", job_id);
+            Config.INSTANCE.logger.error(e.getMessage());
+        }
+        JPGAgent.wake();
+    }
+
+    /**
+     * A dispatch command applies to all agents if it has no payload, otherwise only to agents whose hostname or pid
+     * matches the payload.
+     *
+     * @param payload
+     * @return
+     */
+    boolean isTarget(final String payload)
+    {
+        return payload.isEmpty()
+                || payload.equalsIgnoreCase(Config.INSTANCE.hostname)
+                || payload.equals(String.valueOf(Database.INSTANCE.getPid()));
+    }
+
+    private Integer parseId(final String channel, final String payload)
+    {
+        try
+        {
+            return Integer.parseInt(payload);
+        }
+        catch (final NumberFormatException e)
+        {
+            Config.INSTANCE.logger.warn("Invalid id for {}: {}", channel, payload);
+            return null;
+        }
+    }
+}
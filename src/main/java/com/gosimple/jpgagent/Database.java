@@ -25,29 +25,45 @@ package com.gosimple.jpgagent;
 
 import org.postgresql.ds.PGSimpleDataSource;
 
+import java.net.InetSocketAddress;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
 
 public enum Database
 {
     INSTANCE;
 
     private final PGSimpleDataSource data_source;
+    // Replica set for read only job steps, null if none is configured
+    private final PGSimpleDataSource replica_data_source;
     private int pid;
     private Connection main_connection;
     private Connection listener_connection;
+    // Reconnect attempts for each connection back off independently.
+    private final Object main_lock = new Object();
+    private final Backoff main_backoff;
+    private long main_retry_time = 0;
+    private final Object listener_lock = new Object();
+    private final Backoff listener_backoff;
+    private long listener_retry_time = 0;
 
     private Database()
     {
         data_source = new PGSimpleDataSource();
-        data_source.setServerName(Config.INSTANCE.db_host);
-        data_source.setPortNumber(Config.INSTANCE.db_port);
+        data_source.setServerNames(new String[]{Config.INSTANCE.db_host});
+        data_source.setPortNumbers(new int[]{Config.INSTANCE.db_port});
         data_source.setDatabaseName(Config.INSTANCE.db_database);
         data_source.setUser(Config.INSTANCE.db_user);
         data_source.setPassword(Config.INSTANCE.db_password);
         data_source.setApplicationName("jpgAgent: " + Config.INSTANCE.hostname);
+        data_source.setReadOnlyMode("always");
+        replica_data_source = createReplicaDataSource();
+        main_backoff = new Backoff(Config.INSTANCE.reconnect_wait, Config.INSTANCE.connection_retry_interval);
+        listener_backoff = new Backoff(Config.INSTANCE.reconnect_wait, Config.INSTANCE.connection_retry_interval);
     }
 
     /**
@@ -59,39 +75,108 @@ public enum Database
     {
         if (main_connection == null)
         {
-            resetMainConnection();
+            checkMainConnection();
         }
         return main_connection;
     }
 
+    /**
+     * Checks if the main connection is valid, and reconnects if not and the backoff since the last failed attempt
+     * has passed.
+     *
+     * @return true if the main connection is usable.
+     */
+    public boolean checkMainConnection()
+    {
+        synchronized (main_lock)
+        {
+            if (isValid(main_connection))
+            {
+                return true;
+            }
+            if (System.currentTimeMillis() < main_retry_time)
+            {
+                return false;
+            }
+            resetMainConnection();
+            if (main_connection != null)
+            {
+                main_backoff.reset();
+                main_retry_time = 0;
+                return true;
+            }
+            main_retry_time = System.currentTimeMillis() + main_backoff.nextWait();
+            Config.INSTANCE.logger.warn("Main connection unavailable, retrying in {} ms.", main_retry_time - System.currentTimeMillis());
+            return false;
+        }
+    }
+
+    /**
+     * Returns the time until the main connection will be retried.
+     *
+     * @return milliseconds.
+     */
+    public long getMainRetryWait()
+    {
+        synchronized (main_lock)
+        {
+            return Math.max(0, main_retry_time - System.currentTimeMillis());
+        }
+    }
+
     /**
      * Closes existing connection if necessary, and creates a new connection.
+     * The agent is registered, and claims jobs, by the pid of its main connection, so the registration and claimed
+     * jobs are moved to the new backend before the new connection is used.
      */
     public void resetMainConnection()
     {
+        Connection connection = null;
         try
         {
             if (main_connection != null)
             {
                 main_connection.close();
             }
-            main_connection = Database.INSTANCE.getConnection(Config.INSTANCE.db_host, Config.INSTANCE.db_database);
+            connection = Database.INSTANCE.getConnection(Config.INSTANCE.db_host, Config.INSTANCE.db_database);
 
+            int new_pid = 0;
             String pid_sql = "SELECT pg_backend_pid();";
-            try (Statement statement = main_connection.createStatement())
+            try (Statement statement = connection.createStatement())
             {
                 try (ResultSet result = statement.executeQuery(pid_sql))
                 {
                     while (result.next())
                     {
-                        pid = result.getInt("pg_backend_pid");
+                        new_pid = result.getInt("pg_backend_pid");
                     }
                 }
             }
+            final boolean registration_kept = pid == 0 || Heartbeat.INSTANCE.moveRegistration(connection, pid, new_pid);
+            main_connection = connection;
+            pid = new_pid;
+            if (!registration_kept)
+            {
+                // The lease ran out and this agent's jobs were released while it was disconnected.
+                Heartbeat.INSTANCE.abandonJobs();
+            }
+            // Advisory locks held for mutex keys were lost with the old connection.
+            MutexManager.INSTANCE.reacquire();
         }
         catch (final SQLException e)
         {
             Config.INSTANCE.logger.error(e.getMessage());
+            if (connection != null && connection != main_connection)
+            {
+                try
+                {
+                    connection.close();
+                }
+                catch (final SQLException close_exception)
+                {
+                    Config.INSTANCE.logger.debug(close_exception.getMessage());
+                }
+            }
             main_connection = null;
         }
     }
@@ -105,11 +190,55 @@ public enum Database
     {
         if (listener_connection == null)
         {
-            resetListenerConnection();
+            checkListenerConnection();
         }
         return listener_connection;
     }
 
+    /**
+     * Checks if the listener connection is valid, and reconnects if not and the backoff since the last failed
+     * attempt has passed.
+     *
+     * @return true if the listener connection is usable.
+     */
+    public boolean checkListenerConnection()
+    {
+        synchronized (listener_lock)
+        {
+            if (isValid(listener_connection))
+            {
+                return true;
+            }
+            if (System.currentTimeMillis() < listener_retry_time)
+            {
+                return false;
+            }
+            resetListenerConnection();
+            if (listener_connection != null)
+            {
+                listener_backoff.reset();
+                listener_retry_time = 0;
+                return true;
+            }
+            listener_retry_time = System.currentTimeMillis() + listener_backoff.nextWait();
+            Config.INSTANCE.logger.warn("Listener connection unavailable, retrying in {} ms.", listener_retry_time - System.currentTimeMillis());
+            return false;
+        }
+    }
+
+    /**
+     * Returns the time until the listener connection will be retried.
+     *
+     * @return milliseconds.
+     */
+    public long getListenerRetryWait()
+    {
+        synchronized (listener_lock)
+        {
+            return Math.max(0, listener_retry_time - System.currentTimeMillis());
+        }
+    }
+
     /**
      * Closes existing connection if necessary, and creates a new connection.
      */
@@ -123,10 +252,12 @@ public enum Database
             }
             listener_connection = Database.INSTANCE.getConnection(Config.INSTANCE.db_host, Config.INSTANCE.db_database);
 
-            String listen_sql = "LISTEN jpgagent_kill_job;";
             try (Statement statement = listener_connection.createStatement())
             {
-                statement.execute(listen_sql);
+                for (String channel : ControlListener.CHANNELS)
+                {
+                    statement.execute("LISTEN " + channel + ";");
+                }
             }
         }
         catch (final SQLException e)
@@ -136,6 +267,42 @@ public enum Database
         }
     }
 
+    /**
+     * Returns if the connection is open and responding.
+     *
+     * @param connection
+     * @return
+     */
+    static boolean isValid(final Connection connection)
+    {
+        try
+        {
+            return connection != null && connection.isValid(1);
+        }
+        catch (final SQLException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Returns if the exception was caused by the connection rather than the statement (SQLState class 08).
+     *
+     * @param e
+     * @return
+     */
+    static boolean isConnectionError(final SQLException e)
+    {
+        for (SQLException cause = e; cause != null; cause = cause.getNextException())
+        {
+            if (cause.getSQLState() != null && cause.getSQLState().startsWith("08"))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Returns the pid of the main connection for jpgAgent.
      *
@@ -146,6 +313,21 @@ public enum Database
         return pid;
     }
 
+    /**
+     * Replaces the main connection without checking it or moving the agent's registration, for tests.
+     *
+     * @param connection
+     * @param pid
+     */
+    void setMainConnection(final Connection connection, final int pid)
+    {
+        synchronized (main_lock)
+        {
+            this.main_connection = connection;
+            this.pid = pid;
+        }
+    }
+
     /**
      * Returns a connection to the specified database with autocommit on.
      *
@@ -157,9 +339,122 @@ public enum Database
     public synchronized Connection getConnection(final String host_name, final String database) throws SQLException
     {
         data_source.setDatabaseName(database);
-        data_source.setServerName(host_name);
+        data_source.setServerNames(new String[]{host_name});
+
+        return timedConnect(host_name, database, new Connector()
+        {
+            @Override
+            public Connection connect() throws SQLException
+            {
+                return data_source.getConnection();
+            }
+        });
+    }
+
+    /**
+     * Builds the data source for the configured replica hosts.
+     * The driver spreads connections over the hosts, and prefers standbys, falling back to the primary only if none
+     * is available.
+     *
+     * @return
+     */
+    private static PGSimpleDataSource createReplicaDataSource()
+    {
+        if (Config.INSTANCE.replica_hosts == null)
+        {
+            return null;
+        }
+        final List<InetSocketAddress> hosts = parseHosts(Config.INSTANCE.replica_hosts, Config.INSTANCE.db_port);
+        if (hosts.isEmpty())
+        {
+            return null;
+        }
+        final String[] server_names = new String[hosts.size()];
+        final int[] port_numbers = new int[hosts.size()];
+        for (int i = 0; i < hosts.size(); i++)
+        {
+            server_names[i] = hosts.get(i).getHostString();
+            port_numbers[i] = hosts.get(i).getPort();
+        }
+
+        final PGSimpleDataSource replica_data_source = new PGSimpleDataSource();
+        replica_data_source.setServerNames(server_names);
+        replica_data_source.setPortNumbers(port_numbers);
+        replica_data_source.setTargetServerType("preferSecondary");
+        replica_data_source.setLoadBalanceHosts(true);
+        replica_data_source.setUser(Config.INSTANCE.db_user);
+        replica_data_source.setPassword(Config.INSTANCE.db_password);
+        replica_data_source.setApplicationName("jpgAgent: " + Config.INSTANCE.hostname);
+        replica_data_source.setReadOnlyMode("always");
+        return replica_data_source;
+    }
+
+    /**
+     * Parses a comma separated list of host or host:port entries.
+     *
+     * @param hosts
+     * @param default_port used for entries without a port.
+     * @return unresolved addresses, in the order listed.
+     * @throws NumberFormatException if a port isn't a number.
+     */
+    static List<InetSocketAddress> parseHosts(final String hosts, final int default_port)
+    {
+        final List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String host : hosts.split(","))
+        {
+            host = host.trim();
+            if (host.isEmpty())
+            {
+                continue;
+            }
+            final int port_index = host.lastIndexOf(':');
+            if (port_index > 0)
+            {
+                addresses.add(InetSocketAddress.createUnresolved(host.substring(0, port_index).trim(), Integer.parseInt(host.substring(port_index + 1).trim())));
+            }
+            else
+            {
+                addresses.add(InetSocketAddress.createUnresolved(host, default_port));
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Returns if read only connections can be routed to replicas.
+     *
+     * @return
+     */
+    public boolean hasReplicas()
+    {
+        return replica_data_source != null;
+    }
 
-        return data_source.getConnection();
+    /**
+     * Returns a read only connection to the specified database on one of the replica hosts, with autocommit on.
+     *
+     * @param database
+     * @param user
+     * @param password
+     * @return
+     * @throws SQLException
+     */
+    public Connection getReplicaConnection(final String database, final String user, final String password) throws SQLException
+    {
+        final Connection connection = timedConnect(Config.INSTANCE.replica_hosts, database, new Connector()
+        {
+            @Override
+            public Connection connect() throws SQLException
+            {
+                synchronized (replica_data_source)
+                {
+                    replica_data_source.setDatabaseName(database);
+                    return replica_data_source.getConnection(user, password);
+                }
+            }
+        });
+        connection.setReadOnly(true);
+        return connection;
     }
 
     /**
@@ -175,8 +470,51 @@ public enum Database
     public synchronized Connection getConnection(final String host_name, final String database, final String user, final String password) throws SQLException
     {
         data_source.setDatabaseName(database);
-        data_source.setServerName(host_name);
+        data_source.setServerNames(new String[]{host_name});
+
+        return timedConnect(host_name, database, new Connector()
+        {
+            @Override
+            public Connection connect() throws SQLException
+            {
+                return data_source.getConnection(user, password);
+            }
+        });
+    }
 
-        return data_source.getConnection(user, password);
+    /**
+     * Opens a connection, recording the time taken in the connection metrics and as a connection acquire event.
+     *
+     * @param host_name
+     * @param database
+     * @param connector
+     * @return
+     * @throws SQLException
+     */
+    private static Connection timedConnect(final String host_name, final String database, final Connector connector) throws SQLException
+    {
+        final JfrEvents.ConnectionAcquireEvent jfr_event = JfrEvents.available ? new JfrEvents.ConnectionAcquireEvent() : null;
+        if (jfr_event != null)
+        {
+            jfr_event.begin();
+        }
+        final long start_nanos = System.nanoTime();
+        final Connection connection = connector.connect();
+        Metrics.recordSince(Metrics.INSTANCE.connection_duration, start_nanos);
+        if (jfr_event != null)
+        {
+            jfr_event.host = host_name;
+            jfr_event.database = database;
+            jfr_event.commit();
+        }
+        return connection;
+    }
+
+    /**
+     * Opens a connection from one of the data sources.
+     */
+    private interface Connector
+    {
+        Connection connect() throws SQLException;
     }
 }
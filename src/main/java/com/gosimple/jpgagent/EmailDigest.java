@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Coalesces email per recipient.
+ * Each recipient gets up to the immediate limit of emails sent right away in a window, anything more is held and sent
+ * as one digest when the window ends, so a failure shared by many jobs doesn't flood the recipient.
+ */
+public class EmailDigest
+{
+    private final long window;
+    private final int immediate_limit;
+    private final Map<String, RecipientWindow> recipient_windows = new HashMap<>();
+
+    /**
+     * @param window milliseconds.
+     * @param immediate_limit emails sent right away per recipient in a window.
+     */
+    public EmailDigest(final long window, final int immediate_limit)
+    {
+        this.window = window;
+        this.immediate_limit = Math.max(0, immediate_limit);
+    }
+
+    /**
+     * Adds an email, and returns the recipients it should be sent to right away.
+     * The email is held for the digest of every other recipient.
+     *
+     * @param to
+     * @param subject
+     * @param body
+     * @return
+     */
+    public String[] submit(final String[] to, final String subject, final String body)
+    {
+        return submit(to, subject, body, System.currentTimeMillis());
+    }
+
+    synchronized String[] submit(final String[] to, final String subject, final String body, final long now)
+    {
+        final List<String> immediate = new ArrayList<>();
+        for (String recipient : to)
+        {
+            RecipientWindow recipient_window = recipient_windows.get(recipient);
+            // A window which is over but still holds email is about to be sent by takeDue, so the email joins it.
+            if (recipient_window == null || (recipient_window.isOver(now) && recipient_window.subjects.isEmpty()))
+            {
+                recipient_window = new RecipientWindow(now);
+                recipient_windows.put(recipient, recipient_window);
+            }
+            if (recipient_window.sent < immediate_limit)
+            {
+                recipient_window.sent++;
+                immediate.add(recipient);
+            }
+            else
+            {
+                recipient_window.subjects.add(subject);
+                recipient_window.bodies.add(body);
+            }
+        }
+        return immediate.toArray(new String[immediate.size()]);
+    }
+
+    /**
+     * Returns the digests of windows which are over, and forgets those windows.
+     *
+     * @return
+     */
+    public List<Digest> takeDue()
+    {
+        return takeDue(System.currentTimeMillis());
+    }
+
+    synchronized List<Digest> takeDue(final long now)
+    {
+        return take(now, false);
+    }
+
+    /**
+     * Returns the digests of all windows, over or not, and forgets them.
+     * Used at shutdown so held email isn't lost.
+     *
+     * @return
+     */
+    public synchronized List<Digest> takeAll()
+    {
+        return take(System.currentTimeMillis(), true);
+    }
+
+    private List<Digest> take(final long now, final boolean all)
+    {
+        final List<Digest> digests = new ArrayList<>();
+        final Iterator<Map.Entry<String, RecipientWindow>> iterator = recipient_windows.entrySet().iterator();
+        while (iterator.hasNext())
+        {
+            final Map.Entry<String, RecipientWindow> entry = iterator.next();
+            if (all || entry.getValue().isOver(now))
+            {
+                if (!entry.getValue().subjects.isEmpty())
+                {
+                    digests.add(new Digest(entry.getKey(), entry.getValue().subjects, entry.getValue().bodies));
+                }
+                iterator.remove();
+            }
+        }
+        return digests;
+    }
+
+    private class RecipientWindow
+    {
+        private final long start_time;
+        private int sent = 0;
+        private final List<String> subjects = new ArrayList<>();
+        private final List<String> bodies = new ArrayList<>();
+
+        private RecipientWindow(final long start_time)
+        {
+            this.start_time = start_time;
+        }
+
+        private boolean isOver(final long now)
+        {
+            return now - start_time >= window;
+        }
+    }
+
+    /**
+     * The email held for one recipient over a window, combined into one message.
+     */
+    public static class Digest
+    {
+        private final String recipient;
+        private final List<String> subjects;
+        private final List<String> bodies;
+
+        private Digest(final String recipient, final List<String> subjects, final List<String> bodies)
+        {
+            this.recipient = recipient;
+            this.subjects = subjects;
+            this.bodies = bodies;
+        }
+
+        public String getRecipient()
+        {
+            return recipient;
+        }
+
+        public int getCount()
+        {
+            return subjects.size();
+        }
+
+        public String getSubject()
+        {
+            return "jpgAgent digest: " + subjects.size() + " notification(s)";
+        }
+
+        public String getBody()
+        {
+            final StringBuilder body = new StringBuilder();
+            for (int i = 0; i < subjects.size(); i++)
+            {
+                if (i > 0)
+                {
+                    body.append("<hr>");
+                }
+                body.append("<h3>").append(EmailTemplate.escapeHtml(subjects.get(i))).append("</h3>");
+                body.append(bodies.get(i));
+            }
+            return body.toString();
+        }
+    }
+}
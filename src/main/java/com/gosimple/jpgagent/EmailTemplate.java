@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An email subject or body with tokens, compiled once and rendered in a single pass.
+ * Values are inserted as is, so they can contain any characters, or HTML escaped for an HTML body.  The most
+ * recently used compiled templates are cached by their text, so a job's templates are only compiled the first time
+ * it runs.
+ */
+public class EmailTemplate
+{
+    private static final int template_cache_size = 1000;
+    private static final Map<String, EmailTemplate> template_cache = Collections.synchronizedMap(new LinkedHashMap<String, EmailTemplate>(16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, EmailTemplate> eldest)
+        {
+            return size() > template_cache_size;
+        }
+    });
+    private static final EmailTemplate empty_template = new EmailTemplate(new String[]{""}, new String[0]);
+
+    // Text before each token, and the text after the last token
+    private final String[] literals;
+    private final String[] tokens;
+
+    private EmailTemplate(final String[] literals, final String[] tokens)
+    {
+        this.literals = literals;
+        this.tokens = tokens;
+    }
+
+    /**
+     * Returns the compiled template for the text.
+     *
+     * @param template
+     * @return
+     */
+    public static EmailTemplate compile(final String template)
+    {
+        if (template == null)
+        {
+            return empty_template;
+        }
+        EmailTemplate email_template = template_cache.get(template);
+        if (email_template == null)
+        {
+            email_template = parse(template, getTokens());
+            template_cache.put(template, email_template);
+        }
+        return email_template;
+    }
+
+    /**
+     * Splits the text into literals and tokens.
+     *
+     * @param template
+     * @param known_tokens
+     * @return
+     */
+    static EmailTemplate parse(final String template, final String[] known_tokens)
+    {
+        final List<String> literals = new ArrayList<>();
+        final List<String> tokens = new ArrayList<>();
+        int literal_start = 0;
+        int i = 0;
+        while (i < template.length())
+        {
+            String match = null;
+            for (String token : known_tokens)
+            {
+                if (template.startsWith(token, i))
+                {
+                    match = token;
+                    break;
+                }
+            }
+            if (match == null)
+            {
+                i++;
+                continue;
+            }
+            literals.add(template.substring(literal_start, i));
+            tokens.add(match);
+            i += match.length();
+            literal_start = i;
+        }
+        literals.add(template.substring(literal_start));
+        return new EmailTemplate(literals.toArray(new String[literals.size()]), tokens.toArray(new String[tokens.size()]));
+    }
+
+    /**
+     * Renders the template, tokens without a value are left as they are.
+     *
+     * @param values token to value.
+     * @return
+     */
+    public String render(final Map<String, String> values)
+    {
+        return render(values, false);
+    }
+
+    /**
+     * Renders the template for an HTML body, with the values HTML escaped so output can't break the markup.
+     *
+     * @param values token to value.
+     * @return
+     */
+    public String renderHtml(final Map<String, String> values)
+    {
+        return render(values, true);
+    }
+
+    private String render(final Map<String, String> values, final boolean html)
+    {
+        int length = 0;
+        for (String literal : literals)
+        {
+            length += literal.length();
+        }
+        final StringBuilder string_builder = new StringBuilder(length + 64 * tokens.length);
+        for (int i = 0; i < tokens.length; i++)
+        {
+            string_builder.append(literals[i]);
+            if (values.containsKey(tokens[i]))
+            {
+                final String value = values.get(tokens[i]);
+                if (html)
+                {
+                    appendHtml(string_builder, value);
+                }
+                else
+                {
+                    string_builder.append(value == null ? "" : value);
+                }
+            }
+            else
+            {
+                string_builder.append(tokens[i]);
+            }
+        }
+        string_builder.append(literals[literals.length - 1]);
+        return string_builder.toString();
+    }
+
+    /**
+     * Returns the text HTML escaped.
+     *
+     * @param text
+     * @return
+     */
+    public static String escapeHtml(final String text)
+    {
+        final StringBuilder string_builder = new StringBuilder();
+        appendHtml(string_builder, text);
+        return string_builder.toString();
+    }
+
+    private static void appendHtml(final StringBuilder string_builder, final String text)
+    {
+        if (text == null)
+        {
+            return;
+        }
+        for (int i = 0; i < text.length(); i++)
+        {
+            final char c = text.charAt(i);
+            switch (c)
+            {
+                case '<':
+                    string_builder.append("&lt;");
+                    break;
+                case '>':
+                    string_builder.append("&gt;");
+                    break;
+                case '&':
+                    string_builder.append("&amp;");
+                    break;
+                case '"':
+                    string_builder.append("&quot;");
+                    break;
+                case '\'':
+                    string_builder.append("&#39;");
+                    break;
+                default:
+                    string_builder.append(c);
+            }
+        }
+    }
+
+    /**
+     * Formats a duration for an email.
+     *
+     * @param duration milliseconds.
+     * @return
+     */
+    public static String formatDuration(final long duration)
+    {
+        return duration / 1000 + "." + String.format("%03d", duration % 1000) + " s";
+    }
+
+    /**
+     * Truncates output to the configured limit for an email.
+     *
+     * @param output
+     * @return
+     */
+    public static String truncateOutput(final String output)
+    {
+        if (output == null || output.length() <= Config.INSTANCE.email_output_limit)
+        {
+            return output;
+        }
+        return output.substring(0, Math.max(0, Config.INSTANCE.email_output_limit)) + "...";
+    }
+
+    private static String[] getTokens()
+    {
+        return new String[]{
+                Config.INSTANCE.status_token,
+                Config.INSTANCE.job_name_token,
+                Config.INSTANCE.job_step_name_token,
+                Config.INSTANCE.duration_token,
+                Config.INSTANCE.start_time_token,
+                Config.INSTANCE.step_result_token,
+                Config.INSTANCE.output_token,
+                Config.INSTANCE.host_token
+        };
+    }
+}
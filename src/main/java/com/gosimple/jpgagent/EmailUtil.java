@@ -1,72 +1,65 @@
 package com.gosimple.jpgagent;
 
-import javax.mail.*;
-import javax.mail.internet.InternetAddress;
-import javax.mail.internet.MimeMessage;
-import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
 public class EmailUtil
 {
+    private static EmailDigest email_digest;
+
     public static void sendEmailFromNoReply(String[] to, String subject, String body) {
-        sendEmail(to, Config.INSTANCE.smtp_email, subject, body);
+        sendEmailFromNoReply(to, subject, body, true);
     }
 
-    private static void sendEmail(String[] to, String from, String subject, String body) {
-        final Session session;
-        Properties emailProp = System.getProperties();
-        emailProp.put("mail.smtp.host", Config.INSTANCE.smtp_host);
-        emailProp.put("mail.smtp.port", Config.INSTANCE.smtp_port);
-
-        if(Config.INSTANCE.smtp_ssl)
-        {
-            emailProp.put("mail.smtp.socketFactory.port", Config.INSTANCE.smtp_port);
-            emailProp.put("mail.smtp.socketFactory.class", "javax.net.ssl.SSLSocketFactory");
+    /**
+     * Sends an email, held for a digest when over the immediate limit if digest is true and digests are enabled.
+     */
+    public static void sendEmailFromNoReply(String[] to, String subject, String body, boolean digest) {
+        if (digest && Config.INSTANCE.email_digest_window > 0) {
+            to = getEmailDigest().submit(to, subject, body);
+            if (to.length == 0) {
+                return;
+            }
         }
-        else
-        {
-            emailProp.put("mail.smtp.port", Config.INSTANCE.smtp_port);
+        sendEmail(to, subject, body);
+    }
+
+    private static void sendEmail(String[] to, String subject, String body) {
+        Notifier.INSTANCE.deliver(SmtpSink.NAME, new Notification(to, subject, body, null));
+    }
+
+    /**
+     * Sends the digests of windows which are over.
+     */
+    private static void sendDigests() {
+        for (EmailDigest.Digest digest : getEmailDigest().takeDue()) {
+            Config.INSTANCE.logger.debug("Sending digest of {} email(s) to {}.", digest.getCount(), digest.getRecipient());
+            sendEmail(new String[]{digest.getRecipient()}, digest.getSubject(), digest.getBody());
         }
+    }
 
-        if(null != Config.INSTANCE.smtp_user)
-        {
-            emailProp.put("mail.smtp.auth", "true");
-            Authenticator authenticator = new Authenticator()
-            {
-                @Override
-                protected PasswordAuthentication getPasswordAuthentication()
-                {
-                    return new PasswordAuthentication(Config.INSTANCE.smtp_user, Config.INSTANCE.smtp_password);
-                }
-            };
-            session = Session.getDefaultInstance(emailProp, authenticator);
+    /**
+     * Sends every held digest right away, whether its window is over or not.
+     */
+    public static synchronized void sendAllDigests() {
+        if (email_digest == null) {
+            return;
         }
-        else
-        {
-            emailProp.put("mail.smtp.auth", "false");
-            session = Session.getDefaultInstance(emailProp);
+        for (EmailDigest.Digest digest : email_digest.takeAll()) {
+            Config.INSTANCE.logger.debug("Sending digest of {} email(s) to {}.", digest.getCount(), digest.getRecipient());
+            sendEmail(new String[]{digest.getRecipient()}, digest.getSubject(), digest.getBody());
         }
+    }
 
-
-        try {
-            MimeMessage message = new MimeMessage(session);
-            message.setFrom(new InternetAddress(from));
-            InternetAddress[] toAddress = new InternetAddress[to.length];
-
-            // To get the array of addresses
-            for( int i = 0; i < to.length; i++ ) {
-                toAddress[i] = new InternetAddress(to[i]);
-            }
-
-            for( int i = 0; i < toAddress.length; i++) {
-                message.addRecipient(Message.RecipientType.TO, toAddress[i]);
-            }
-
-            message.setSubject(subject);
-            message.setContent(body, "text/html; charset=utf-8");
-            Transport.send(message);
-        }
-        catch (Exception e) {
-            Config.INSTANCE.logger.error(e.getMessage());
+    private static synchronized EmailDigest getEmailDigest() {
+        if (email_digest == null) {
+            email_digest = new EmailDigest(Config.INSTANCE.email_digest_window, Config.INSTANCE.email_digest_immediate);
+            ThreadFactory.INSTANCE.scheduleTask(new Runnable() {
+                @Override
+                public void run() {
+                    sendDigests();
+                }
+            }, Math.max(100, Math.min(Config.INSTANCE.email_digest_window, 1000)), TimeUnit.MILLISECONDS);
         }
+        return email_digest;
     }
 }
@@ -0,0 +1,394 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps this agent's registration alive, and detects agents which have stopped.
+ * Every agent updates jaglastseen in pgagent.jpgagent_agent each heartbeat interval.  An agent which hasn't been
+ * seen within the lease is dead, and the maintenance leader releases the jobs it was running.  Agents without a
+ * heartbeat row are dead as soon as their backend is gone.
+ * <p>
+ * Agents are identified by the pid of their main connection, so when it is replaced the agent's registration and
+ * claimed jobs are moved to the new pid.  Its jobs are only killed once the lease has run out.
+ */
+public enum Heartbeat
+{
+    INSTANCE;
+
+    // Set once the agent table has been created, agents are still detected by backend if it can't be.
+    private volatile boolean registered = false;
+    // When the last heartbeat was recorded
+    private volatile long last_beat_time = System.currentTimeMillis();
+
+    /**
+     * Starts sending heartbeats.
+     */
+    public void start()
+    {
+        ThreadFactory.INSTANCE.scheduleTask(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                beat();
+            }
+        }, Config.INSTANCE.heartbeat_interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates the agent table if needed, and registers this agent in it.
+     * Must be called after this agent is registered in pgagent.pga_jobagent.
+     */
+    public void register()
+    {
+        final String create_table_sql =
+                "CREATE TABLE IF NOT EXISTS pgagent.jpgagent_agent (" +
+                        "jagpid INTEGER NOT NULL PRIMARY KEY REFERENCES pgagent.pga_jobagent (jagpid) ON DELETE CASCADE, " +
+                        "jagcapacity INTEGER NOT NULL, " +
+                        "jaglastseen TIMESTAMPTZ NOT NULL DEFAULT now());";
+        final String update_agent_sql =
+                "UPDATE pgagent.jpgagent_agent " +
+                        "SET jagcapacity = ?, jaglastseen = now() " +
+                        "WHERE jagpid = ?;";
+        final String insert_agent_sql =
+                "INSERT INTO pgagent.jpgagent_agent (jagpid, jagcapacity) SELECT ?, ? " +
+                        "WHERE NOT EXISTS (" +
+                        "SELECT 1 " +
+                        "FROM pgagent.jpgagent_agent " +
+                        "WHERE jagpid = ?);";
+
+        try (final Statement statement = Database.INSTANCE.getMainConnection().createStatement();
+             final PreparedStatement update_agent_statement = Database.INSTANCE.getMainConnection().prepareStatement(update_agent_sql);
+             final PreparedStatement insert_agent_statement = Database.INSTANCE.getMainConnection().prepareStatement(insert_agent_sql))
+        {
+            statement.execute(create_table_sql);
+            update_agent_statement.setInt(1, Sharding.INSTANCE.getCapacity());
+            update_agent_statement.setInt(2, Database.INSTANCE.getPid());
+            update_agent_statement.execute();
+            insert_agent_statement.setInt(1, Database.INSTANCE.getPid());
+            insert_agent_statement.setInt(2, Sharding.INSTANCE.getCapacity());
+            insert_agent_statement.setInt(3, Database.INSTANCE.getPid());
+            insert_agent_statement.execute();
+            registered = true;
+            last_beat_time = System.currentTimeMillis();
+            Config.INSTANCE.logger.debug("Registered agent heartbeat.");
+        }
+        catch (final SQLException e)
+        {
+            Config.INSTANCE.logger.error("Unable to register agent heartbeat, dead agents will only be detected by their backend.");
+            Config.INSTANCE.logger.error(e.getMessage());
+        }
+    }
+
+    /**
+     * Returns if the agent table is in use.
+     *
+     * @return
+     */
+    public boolean isRegistered()
+    {
+        return registered;
+    }
+
+    /**
+     * Moves this agent's registration and claimed jobs to the backend of a new main connection.
+     * Running job logs follow their jobs, as they are tied to the agent through pga_job.
+     *
+     * @param connection the new main connection.
+     * @param old_pid
+     * @param new_pid
+     * @return false if the old registration was already removed, because the lease ran out.
+     * @throws SQLException
+     */
+    boolean moveRegistration(final Connection connection, final int old_pid, final int new_pid) throws SQLException
+    {
+        final String insert_job_agent_sql =
+                "INSERT INTO pgagent.pga_jobagent (jagpid, jagstation) SELECT ?, ? " +
+                        "WHERE NOT EXISTS (" +
+                        "SELECT 1 " +
+                        "FROM pgagent.pga_jobagent " +
+                        "WHERE jagpid = ?);";
+        final String insert_agent_sql =
+                "INSERT INTO pgagent.jpgagent_agent (jagpid, jagcapacity) SELECT ?, ? " +
+                        "WHERE NOT EXISTS (" +
+                        "SELECT 1 " +
+                        "FROM pgagent.jpgagent_agent " +
+                        "WHERE jagpid = ?);";
+        final String move_jobs_sql =
+                "UPDATE pgagent.pga_job " +
+                        "SET jobagentid = ? " +
+                        "WHERE jobagentid = ?;";
+        final String remove_agent_sql =
+                "DELETE FROM pgagent.pga_jobagent " +
+                        "WHERE jagpid = ?;";
+
+        final boolean registration_kept;
+        connection.setAutoCommit(false);
+        try (final PreparedStatement insert_job_agent_statement = connection.prepareStatement(insert_job_agent_sql);
+             final PreparedStatement insert_agent_statement = connection.prepareStatement(insert_agent_sql);
+             final PreparedStatement move_jobs_statement = connection.prepareStatement(move_jobs_sql);
+             final PreparedStatement remove_agent_statement = connection.prepareStatement(remove_agent_sql))
+        {
+            insert_job_agent_statement.setInt(1, new_pid);
+            insert_job_agent_statement.setString(2, Config.INSTANCE.hostname);
+            insert_job_agent_statement.setInt(3, new_pid);
+            insert_job_agent_statement.execute();
+            if (registered)
+            {
+                insert_agent_statement.setInt(1, new_pid);
+                insert_agent_statement.setInt(2, Sharding.INSTANCE.getCapacity());
+                insert_agent_statement.setInt(3, new_pid);
+                insert_agent_statement.execute();
+            }
+            move_jobs_statement.setInt(1, new_pid);
+            move_jobs_statement.setInt(2, old_pid);
+            final int jobs_moved = move_jobs_statement.executeUpdate();
+            // Also removes the old heartbeat row, through the foreign key cascade.
+            remove_agent_statement.setInt(1, old_pid);
+            registration_kept = remove_agent_statement.executeUpdate() > 0;
+            connection.commit();
+            Config.INSTANCE.logger.info("Moved agent registration and {} claimed job(s) from pid: {} to pid: {}.", jobs_moved, old_pid, new_pid);
+        }
+        catch (final SQLException e)
+        {
+            connection.rollback();
+            throw e;
+        }
+        finally
+        {
+            connection.setAutoCommit(true);
+        }
+        if (registration_kept)
+        {
+            last_beat_time = System.currentTimeMillis();
+        }
+        else
+        {
+            Config.INSTANCE.logger.warn("Agent registration for pid: {} was removed while disconnected.", old_pid);
+        }
+        return registration_kept;
+    }
+
+    /**
+     * Updates the last seen time of this agent.
+     * The registration is moved along with the main connection, so it is only missing if the lease ran out and the
+     * agent was cleaned up, or no heartbeat was recorded within the lease.  Either way other agents may already be
+     * running its jobs, so the jobs running here are killed.
+     */
+    private void beat()
+    {
+        if (!registered)
+        {
+            return;
+        }
+
+        final String beat_sql =
+                "UPDATE pgagent.jpgagent_agent " +
+                        "SET jaglastseen = now() " +
+                        "WHERE jagpid = ?;";
+
+        try (final PreparedStatement beat_statement = Database.INSTANCE.getMainConnection().prepareStatement(beat_sql))
+        {
+            beat_statement.setInt(1, Database.INSTANCE.getPid());
+            if (beat_statement.executeUpdate() == 0)
+            {
+                // This agent was cleaned up after its lease ran out, register again.
+                Config.INSTANCE.logger.warn("Agent registration for pid: {} is missing, re-registering.", Database.INSTANCE.getPid());
+                abandonJobs();
+                JPGAgent.requestCleanup();
+            }
+            else
+            {
+                last_beat_time = System.currentTimeMillis();
+            }
+        }
+        catch (final Exception e)
+        {
+            Config.INSTANCE.logger.error("An error occurred sending heartbeat.");
+            Config.INSTANCE.logger.error(e.getMessage());
+            if (System.currentTimeMillis() - last_beat_time > Config.INSTANCE.agent_lease)
+            {
+                Config.INSTANCE.logger.warn("No heartbeat recorded within the agent lease.");
+                abandonJobs();
+            }
+        }
+    }
+
+    /**
+     * Kills the jobs running on this agent and releases their mutex keys, once its lease on them is lost.
+     */
+    void abandonJobs()
+    {
+        if (JobRegistry.INSTANCE.getJobCount() > 0)
+        {
+            Config.INSTANCE.logger.warn("Agent lease lost, killing {} running job(s).", JobRegistry.INSTANCE.getJobCount());
+        }
+        JobRegistry.INSTANCE.killAll();
+        MutexManager.INSTANCE.releaseAll();
+        // Only kill again if another lease passes without a heartbeat.
+        last_beat_time = System.currentTimeMillis();
+    }
+
+    /**
+     * Marks the jobs and job steps dead agents were running as aborted, releases their jobs,
+     * and removes the agents.
+     * Only log rows still in running status are touched, and they are updated in batches of --cleanup-batch-size
+     * to keep each statement short.
+     *
+     * @return the number of dead agents cleaned up.
+     * @throws SQLException
+     */
+    public int cleanupDeadAgents() throws SQLException
+    {
+        final List<Integer> dead_agents = new ArrayList<>();
+        try (final PreparedStatement statement = Database.INSTANCE.getMainConnection().prepareStatement(getDeadAgentSql() + ";"))
+        {
+            if (registered)
+            {
+                statement.setLong(1, Config.INSTANCE.agent_lease);
+            }
+            try (final ResultSet result_set = statement.executeQuery())
+            {
+                while (result_set.next())
+                {
+                    dead_agents.add(result_set.getInt("jagpid"));
+                }
+            }
+        }
+        if (dead_agents.isEmpty())
+        {
+            return 0;
+        }
+        Config.INSTANCE.logger.info("Dead agent(s) detected: {}, releasing their jobs.", dead_agents);
+
+        final String abort_job_log_sql =
+                "UPDATE pgagent.pga_joblog " +
+                        "SET jlgstatus='d' " +
+                        "WHERE jlgid IN (" +
+                        "SELECT l.jlgid " +
+                        "FROM pgagent.pga_joblog l " +
+                        "INNER JOIN pgagent.pga_job j " +
+                        "ON j.jobid = l.jlgjobid " +
+                        "WHERE l.jlgstatus='r' " +
+                        "AND j.jobagentid = ANY(?) " +
+                        "LIMIT ?);";
+        // Covers the steps of the jobs aborted above, along with any other step left running by a finished job.
+        final String abort_job_step_log_sql =
+                "UPDATE pgagent.pga_jobsteplog " +
+                        "SET jslstatus='d' " +
+                        "WHERE jslid IN (" +
+                        "SELECT s.jslid " +
+                        "FROM pgagent.pga_jobsteplog s " +
+                        "INNER JOIN pgagent.pga_joblog l " +
+                        "ON l.jlgid = s.jsljlgid " +
+                        "WHERE s.jslstatus='r' " +
+                        "AND l.jlgstatus <> 'r' " +
+                        "LIMIT ?);";
+        final String release_job_sql =
+                "UPDATE pgagent.pga_job " +
+                        "SET jobagentid=NULL, jobnextrun=NULL " +
+                        "WHERE jobagentid = ANY(?);";
+        final String remove_agent_sql =
+                "DELETE FROM pgagent.pga_jobagent " +
+                        "WHERE jagpid = ANY(?);";
+
+        final Array dead_agent_array = Database.INSTANCE.getMainConnection().createArrayOf("integer", dead_agents.toArray());
+        final int batch_size = Math.max(1, Config.INSTANCE.cleanup_batch_size);
+        int job_logs_aborted = 0;
+        int job_step_logs_aborted = 0;
+        int jobs_released;
+        try (final PreparedStatement abort_job_log_statement = Database.INSTANCE.getMainConnection().prepareStatement(abort_job_log_sql);
+             final PreparedStatement abort_job_step_log_statement = Database.INSTANCE.getMainConnection().prepareStatement(abort_job_step_log_sql);
+             final PreparedStatement release_job_statement = Database.INSTANCE.getMainConnection().prepareStatement(release_job_sql);
+             final PreparedStatement remove_agent_statement = Database.INSTANCE.getMainConnection().prepareStatement(remove_agent_sql))
+        {
+            abort_job_log_statement.setArray(1, dead_agent_array);
+            abort_job_log_statement.setInt(2, batch_size);
+            int updated;
+            do
+            {
+                updated = abort_job_log_statement.executeUpdate();
+                job_logs_aborted += updated;
+            }
+            while (updated == batch_size);
+
+            abort_job_step_log_statement.setInt(1, batch_size);
+            do
+            {
+                updated = abort_job_step_log_statement.executeUpdate();
+                job_step_logs_aborted += updated;
+            }
+            while (updated == batch_size);
+
+            release_job_statement.setArray(1, dead_agent_array);
+            jobs_released = release_job_statement.executeUpdate();
+
+            remove_agent_statement.setArray(1, dead_agent_array);
+            remove_agent_statement.execute();
+        }
+
+        Config.INSTANCE.logger.info("Cleaned up after {} dead agent(s): {} job log(s) and {} job step log(s) aborted, {} job(s) released.",
+                dead_agents.size(), job_logs_aborted, job_step_logs_aborted, jobs_released);
+        return dead_agents.size();
+    }
+
+    /**
+     * Returns a query for the pids of agents which are dead.
+     * Agents with a heartbeat are dead when their lease has expired, as their backend changes whenever their main
+     * connection is replaced.  Other agents are dead when their backend is gone.
+     * When the agent table is in use, the lease (ms) is the query's only parameter.
+     *
+     * @return
+     */
+    private String getDeadAgentSql()
+    {
+        String dead_agent_sql =
+                "SELECT jagpid " +
+                        "FROM pgagent.pga_jobagent AG " +
+                        "LEFT JOIN pg_stat_activity PA ON jagpid=pid " +
+                        "WHERE pid IS NULL";
+        if (registered)
+        {
+            dead_agent_sql +=
+                    " AND NOT EXISTS (" +
+                            "SELECT 1 " +
+                            "FROM pgagent.jpgagent_agent JA " +
+                            "WHERE JA.jagpid = AG.jagpid)" +
+                            " UNION " +
+                            "SELECT jagpid " +
+                            "FROM pgagent.jpgagent_agent " +
+                            "WHERE jaglastseen < now() - ? * interval '1 millisecond'";
+        }
+        return dead_agent_sql;
+    }
+}
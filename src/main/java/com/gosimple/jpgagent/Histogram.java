@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free histogram of non-negative values with log-linear buckets, in the style of HdrHistogram.
+ * Values below 16 are counted exactly, above that each power of two is split into 8 buckets, so any value is
+ * within 12.5% of its bucket's bounds.  Recording is a couple of atomic increments, and the histogram is a fixed
+ * size regardless of how many values are recorded.
+ */
+public class Histogram
+{
+    private static final int linear_buckets = 16;
+    private static final int sub_bucket_bits = 3;
+    private static final int sub_buckets = 1 << sub_bucket_bits;
+    private static final int bucket_count = linear_buckets + (63 - 4) * sub_buckets;
+
+    private final AtomicLongArray counts = new AtomicLongArray(bucket_count);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * Records a value, negative values are recorded as 0.
+     *
+     * @param value
+     */
+    public void record(final long value)
+    {
+        final long recorded_value = Math.max(0, value);
+        counts.incrementAndGet(getIndex(recorded_value));
+        count.increment();
+        sum.add(recorded_value);
+    }
+
+    /**
+     * @return number of values recorded.
+     */
+    public long getCount()
+    {
+        return count.sum();
+    }
+
+    /**
+     * @return sum of the values recorded.
+     */
+    public long getSum()
+    {
+        return sum.sum();
+    }
+
+    /**
+     * Returns the number of values recorded which are less than 2^exponent, so at most 2^exponent - 1.
+     * 2^exponent itself shares a bucket with larger values, so this is the nearest bound which is exact.
+     *
+     * @param exponent
+     * @return
+     */
+    public long getCountBelowPowerOfTwo(final int exponent)
+    {
+        if (exponent >= 63)
+        {
+            return getCount();
+        }
+        final int limit = getIndex(1L << exponent);
+        long below = 0;
+        for (int i = 0; i < limit; i++)
+        {
+            below += counts.get(i);
+        }
+        return below;
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding the given percentile of the values recorded.
+     *
+     * @param percentile between 0 and 100.
+     * @return 0 if nothing was recorded.
+     */
+    public long getPercentile(final double percentile)
+    {
+        final long total = getCount();
+        if (total == 0)
+        {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100));
+        long seen = 0;
+        for (int i = 0; i < bucket_count; i++)
+        {
+            seen += counts.get(i);
+            if (seen >= rank)
+            {
+                return getUpperBound(i);
+            }
+        }
+        return getUpperBound(bucket_count - 1);
+    }
+
+    static int getIndex(final long value)
+    {
+        if (value < linear_buckets)
+        {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int sub_bucket = (int) (value >>> (exponent - sub_bucket_bits)) & (sub_buckets - 1);
+        return linear_buckets + (exponent - 4) * sub_buckets + sub_bucket;
+    }
+
+    static long getUpperBound(final int index)
+    {
+        if (index < linear_buckets)
+        {
+            return index;
+        }
+        final int exponent = (index - linear_buckets) / sub_buckets + 4;
+        final int sub_bucket = (index - linear_buckets) % sub_buckets;
+        final long width = 1L << (exponent - sub_bucket_bits);
+        final long lower = (long) (sub_buckets + sub_bucket) << (exponent - sub_bucket_bits);
+        return lower + width - 1;
+    }
+}
@@ -22,26 +22,33 @@
 
 package com.gosimple.jpgagent;
 
+import ch.qos.logback.classic.LoggerContext;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
-import org.postgresql.PGConnection;
-import org.postgresql.PGNotification;
+import org.slf4j.LoggerFactory;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.sql.Array;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Future;
 
 public class JPGAgent
 {
-    private static final Map<Integer, Future<?>> job_future_map = new HashMap<>();
-    private static boolean run_cleanup = true;
+    private static volatile boolean run_cleanup = true;
+    // Dispatch control, set by commands received over NOTIFY
+    private static volatile boolean paused = false;
+    private static volatile boolean draining = false;
+    private static volatile boolean shutting_down = false;
+    // Time given to killed jobs to log their outcome, and to the log spool to be written out, on shutdown
+    private static final long shutdown_flush_wait = 5000;
+    private static final Object wake_lock = new Object();
+    private static boolean wake_requested = false;
 
     public static void main(String[] args)
     {
@@ -52,46 +59,80 @@ public class JPGAgent
         }
 
         Config.INSTANCE.logger.info("jpgAgent starting.");
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                shutdown();
+            }
+        }, "Shutdown"));
 
-        Database.INSTANCE.resetMainConnection();
+        Database.INSTANCE.checkMainConnection();
+        LogSpool.INSTANCE.start();
+        if (Config.INSTANCE.optimize_schema)
+        {
+            SchemaOptimizer.INSTANCE.start();
+        }
+        Heartbeat.INSTANCE.start();
+        Maintenance.INSTANCE.start();
+        LogRetention.INSTANCE.start();
+        ControlListener.INSTANCE.start();
+        Metrics.INSTANCE.start();
+        Tracer.INSTANCE.start();
 
         // Enter main loop
+        final Backoff error_backoff = new Backoff(Config.INSTANCE.reconnect_wait, Config.INSTANCE.connection_retry_interval);
+        int main_pid = Database.INSTANCE.getPid();
         while (true)
         {
             try
             {
                 Config.INSTANCE.logger.debug("Check if main connection is valid.");
-                if (Database.INSTANCE.getMainConnection() == null || !Database.INSTANCE.getMainConnection().isValid(1))
+                if (!Database.INSTANCE.checkMainConnection())
                 {
-                    Database.INSTANCE.resetMainConnection();
+                    // Nothing can be dispatched without the main connection, wait for the next reconnect attempt.
+                    Thread.sleep(Math.max(1, Database.INSTANCE.getMainRetryWait()));
+                    continue;
                 }
-                Config.INSTANCE.logger.debug("Check if listener connection is valid.");
-                if (Database.INSTANCE.getListenerConnection() == null || !Database.INSTANCE.getListenerConnection().isValid(1))
+                if (Database.INSTANCE.getPid() != main_pid)
                 {
-                    Database.INSTANCE.resetListenerConnection();
+                    // New backend, so the agent must register again.
+                    main_pid = Database.INSTANCE.getPid();
+                    run_cleanup = true;
                 }
 
-                // Process all incoming notifications.
-                processNotifications();
-
                 // Run cleanup of zombie jobs.
                 cleanup();
 
+                if (draining && JobRegistry.INSTANCE.getJobCount() == 0)
+                {
+                    Config.INSTANCE.logger.info("Drain complete, no jobs running.  jpgAgent exiting.");
+                    System.exit(0);
+                }
+
                 // Actually run new jobs.
-                runJobs();
+                if (paused || draining || shutting_down)
+                {
+                    Config.INSTANCE.logger.debug("Dispatch is {}, not claiming jobs.", draining ? "draining" : "paused");
+                }
+                else
+                {
+                    runJobs();
+                }
+                error_backoff.reset();
 
-                // Sleep for the allotted time before starting all over.
-                Thread.sleep(Config.INSTANCE.job_poll_interval);
+                // Sleep for the allotted time before starting all over, until a rate limited job can start, or until woken by a command.
+                waitForWake(Math.max(1, Math.min(Config.INSTANCE.job_poll_interval, StartRateLimiter.INSTANCE.takeDeferredWaitMillis())));
             }
             catch (final Exception e)
             {
-                // If it fails, sleep and try and restart the loop
+                // If it fails, back off and try and restart the loop
                 Config.INSTANCE.logger.error("Error encountered in the main loop.");
                 Config.INSTANCE.logger.error(e.getMessage());
-                run_cleanup = true;
                 try
                 {
-                    Thread.sleep(Config.INSTANCE.connection_retry_interval);
+                    Thread.sleep(error_backoff.nextWait());
                 }
                 catch (InterruptedException ie)
                 {
@@ -102,38 +143,19 @@ public class JPGAgent
     }
 
     /**
-     * Processes notifications which may have been issued on channels that jpgAgent is listening on.
+     * Kills a running job.
      *
-     * @return
+     * @param job_id
      */
-    private static void processNotifications() throws Exception
+    static void killJob(final int job_id)
     {
-        try (final Statement statement = Database.INSTANCE.getListenerConnection().createStatement();
-             final ResultSet result_set = statement.executeQuery("SELECT 1;"))
+        if (JobRegistry.INSTANCE.killJob(job_id))
         {
-            Config.INSTANCE.logger.debug("Kill jobs begin.");
-            final PGConnection pg_connection = Database.INSTANCE.getListenerConnection().unwrap(PGConnection.class);
-            final PGNotification notifications[] = pg_connection.getNotifications();
-
-            if (null != notifications)
-            {
-                for (PGNotification notification : notifications)
-                {
-                    if (notification.getName().equals("jpgagent_kill_job"))
-                    {
-                        int job_id = Integer.valueOf(notification.getParameter());
-                        if (job_future_map.containsKey(job_id))
-                        {
-                            Config.INSTANCE.logger.info("Killing job_id: {}.", job_id);
-                            job_future_map.get(job_id).cancel(true);
-                        }
-                        else
-                        {
-                            Config.INSTANCE.logger.info("Kill request for job_id: {} was submitted, but the job was not running.", job_id);
-                        }
-                    }
-                }
-            }
+            Config.INSTANCE.logger.info("Killing job_id: {}.", job_id);
+        }
+        else
+        {
+            Config.INSTANCE.logger.info("Kill request for job_id: {} was submitted, but the job was not running.", job_id);
         }
     }
 
@@ -153,54 +175,6 @@ public class JPGAgent
 
         Config.INSTANCE.logger.debug("Running cleanup to clear old data and re-initialize to start processing.");
 
-        final String cleanup_sql =
-                "CREATE TEMP TABLE pga_tmp_zombies(jagpid INTEGER); " +
-
-                        "INSERT INTO pga_tmp_zombies (jagpid) " +
-                        "SELECT jagpid " +
-                        "FROM pgagent.pga_jobagent AG " +
-                        "LEFT JOIN pg_stat_activity PA ON jagpid=pid " +
-                        "WHERE pid IS NULL; " +
-
-                        "UPDATE pgagent.pga_joblog SET jlgstatus='d' WHERE jlgid IN (" +
-                        "SELECT jlgid " +
-                        "FROM pga_tmp_zombies z " +
-                        "INNER JOIN pgagent.pga_job j " +
-                        "ON z.jagpid=j.jobagentid " +
-                        "INNER JOIN pgagent.pga_joblog l " +
-                        "ON j.jobid = l.jlgjobid " +
-                        "WHERE l.jlgstatus='r'); " +
-
-                        "UPDATE pgagent.pga_jobsteplog SET jslstatus='d' WHERE jslid IN ( " +
-                        "SELECT jslid " +
-                        "FROM pga_tmp_zombies z " +
-                        "INNER JOIN pgagent.pga_job j " +
-                        "ON z.jagpid=j.jobagentid " +
-                        "INNER JOIN pgagent.pga_joblog l " +
-                        "ON j.jobid = l.jlgjobid " +
-                        "INNER JOIN pgagent.pga_jobsteplog s " +
-                        "ON  l.jlgid = s.jsljlgid " +
-                        "WHERE s.jslstatus='r'); " +
-
-                        "UPDATE pgagent.pga_jobsteplog SET jslstatus='d' " +
-                        "WHERE jslid IN ( " +
-                        "SELECT jslid " +
-                        "FROM pgagent.pga_joblog l " +
-                        "INNER JOIN  pgagent.pga_jobsteplog s " +
-                        "ON l.jlgid = s.jsljlgid " +
-                        "WHERE TRUE " +
-                        "AND l.jlgstatus <> 'r' " +
-                        "AND s.jslstatus = 'r'); " +
-
-                        "UPDATE pgagent.pga_job SET jobagentid=NULL, jobnextrun=NULL " +
-                        "WHERE jobagentid IN (SELECT jagpid FROM pga_tmp_zombies); " +
-
-                        "DELETE FROM pgagent.pga_jobagent " +
-                        "WHERE jagpid IN (SELECT jagpid FROM pga_tmp_zombies);" +
-
-                        "DROP TABLE pga_tmp_zombies; ";
-
-
         final String register_agent_sql =
                 "INSERT INTO pgagent.pga_jobagent (jagpid, jagstation) SELECT ?, ? " +
                         "WHERE NOT EXISTS (" +
@@ -209,10 +183,8 @@ public class JPGAgent
                         "WHERE jagpid = ? " +
                         "AND jagstation = ?);";
 
-        try (final Statement statement = Database.INSTANCE.getMainConnection().createStatement();
-             final PreparedStatement register_agent_statement = Database.INSTANCE.getMainConnection().prepareStatement(register_agent_sql))
+        try (final PreparedStatement register_agent_statement = Database.INSTANCE.getMainConnection().prepareStatement(register_agent_sql))
         {
-            statement.execute(cleanup_sql);
             register_agent_statement.setInt(1, Database.INSTANCE.getPid());
             register_agent_statement.setString(2, Config.INSTANCE.hostname);
             register_agent_statement.setInt(3, Database.INSTANCE.getPid());
@@ -220,54 +192,315 @@ public class JPGAgent
             register_agent_statement.execute();
         }
 
+        Heartbeat.INSTANCE.register();
 
-        Config.INSTANCE.logger.debug("Cleanup of completed jobs started.");
-        final List<Integer> job_ids_to_remove = new ArrayList<>();
-        for (Integer job_id : job_future_map.keySet())
+
+        // Set the flag to run the cleanup process to false so this won't run again unless needed
+        run_cleanup = false;
+
+        Config.INSTANCE.logger.debug("Successfully cleaned up.");
+    }
+
+    /**
+     * Waits until the timeout passes or the main loop is woken.
+     *
+     * @param timeout milliseconds.
+     * @throws InterruptedException
+     */
+    private static void waitForWake(final long timeout) throws InterruptedException
+    {
+        synchronized (wake_lock)
         {
-            if (job_future_map.get(job_id).isDone())
+            if (!wake_requested)
             {
-                job_ids_to_remove.add(job_id);
+                wake_lock.wait(timeout);
             }
+            wake_requested = false;
         }
+    }
 
-        for (Integer job_id : job_ids_to_remove)
+    /**
+     * Wakes the main loop so it runs its next pass immediately.
+     */
+    static void wake()
+    {
+        synchronized (wake_lock)
         {
-            job_future_map.remove(job_id);
+            wake_requested = true;
+            wake_lock.notifyAll();
         }
-        job_ids_to_remove.clear();
+    }
 
-        // Set the flag to run the cleanup process to false so this won't run again unless needed
-        run_cleanup = false;
+    /**
+     * Stops claiming new jobs, running jobs continue.
+     */
+    static void pause()
+    {
+        Config.INSTANCE.logger.info("Pausing dispatch.");
+        paused = true;
+    }
 
-        Config.INSTANCE.logger.debug("Successfully cleaned up.");
+    /**
+     * Starts claiming jobs again after a pause or drain.
+     */
+    static void resume()
+    {
+        Config.INSTANCE.logger.info("Resuming dispatch.");
+        paused = false;
+        draining = false;
+        wake();
+    }
+
+    /**
+     * Stops claiming new jobs, and exits through the shutdown hook once the running jobs finish.
+     */
+    static void drain()
+    {
+        Config.INSTANCE.logger.info("Draining, {} job(s) running.", JobRegistry.INSTANCE.getJobCount());
+        draining = true;
+        wake();
+    }
+
+    /**
+     * Shuts the agent down in order, run by the shutdown hook.
+     * Stops claiming, gives running jobs the grace period to finish and kills the rest, writes out the log spool,
+     * then releases anything still claimed by this agent and deregisters it, so no other agent has to clean up after it.
+     */
+    private static void shutdown()
+    {
+        Config.INSTANCE.logger.info("jpgAgent shutting down, {} job(s) running.", JobRegistry.INSTANCE.getJobCount());
+        shutting_down = true;
+        try
+        {
+            if (!waitForJobs(Config.INSTANCE.shutdown_grace))
+            {
+                Config.INSTANCE.logger.warn("Killing {} job(s) still running after the shutdown grace period.", JobRegistry.INSTANCE.getJobCount());
+                JobRegistry.INSTANCE.killAll();
+                waitForJobs(shutdown_flush_wait);
+            }
+            if (!LogSpool.INSTANCE.flush(shutdown_flush_wait))
+            {
+                Config.INSTANCE.logger.warn("Log spool not empty at shutdown, {} bytes will be written on the next start.", LogSpool.INSTANCE.getPendingBytes());
+            }
+            // Digests still held would be lost, send them with the rest of the notifications.
+            EmailUtil.sendAllDigests();
+            if (!Notifier.INSTANCE.flush(shutdown_flush_wait))
+            {
+                Config.INSTANCE.logger.warn("Notification queues not empty at shutdown, {} notification(s) not delivered.", Notifier.INSTANCE.getQueued());
+            }
+            Tracer.INSTANCE.flush(shutdown_flush_wait);
+        }
+        catch (final InterruptedException e)
+        {
+            Config.INSTANCE.logger.error(e.getMessage());
+        }
+
+        final String abort_log_sql =
+                "UPDATE pgagent.pga_joblog SET jlgstatus='d' " +
+                        "WHERE jlgstatus='r' " +
+                        "AND jlgjobid IN (" +
+                        "SELECT jobid " +
+                        "FROM pgagent.pga_job " +
+                        "WHERE jobagentid = ?);";
+        final String release_job_sql =
+                "UPDATE pgagent.pga_job SET jobagentid=NULL, jobnextrun=NULL " +
+                        "WHERE jobagentid = ?;";
+        final String deregister_agent_sql =
+                "DELETE FROM pgagent.pga_jobagent " +
+                        "WHERE jagpid = ?;";
+        try (final PreparedStatement abort_log_statement = Database.INSTANCE.getMainConnection().prepareStatement(abort_log_sql);
+             final PreparedStatement release_job_statement = Database.INSTANCE.getMainConnection().prepareStatement(release_job_sql);
+             final PreparedStatement deregister_agent_statement = Database.INSTANCE.getMainConnection().prepareStatement(deregister_agent_sql))
+        {
+            abort_log_statement.setInt(1, Database.INSTANCE.getPid());
+            abort_log_statement.execute();
+            release_job_statement.setInt(1, Database.INSTANCE.getPid());
+            release_job_statement.execute();
+            deregister_agent_statement.setInt(1, Database.INSTANCE.getPid());
+            deregister_agent_statement.execute();
+        }
+        catch (final Exception e)
+        {
+            Config.INSTANCE.logger.error("Unable to deregister the agent, it will be cleaned up as a dead agent.");
+            Config.INSTANCE.logger.error(e.getMessage());
+        }
+
+        ThreadFactory.INSTANCE.shutdown();
+        Config.INSTANCE.logger.info("jpgAgent shut down.");
+
+        // Writes out events still queued in the async appender.
+        if (LoggerFactory.getILoggerFactory() instanceof LoggerContext)
+        {
+            ((LoggerContext) LoggerFactory.getILoggerFactory()).stop();
+        }
+    }
+
+    /**
+     * Waits for running jobs to finish.
+     *
+     * @param timeout milliseconds.
+     * @return true if no jobs are running.
+     * @throws InterruptedException
+     */
+    private static boolean waitForJobs(final long timeout) throws InterruptedException
+    {
+        final long deadline = System.currentTimeMillis() + timeout;
+        while (JobRegistry.INSTANCE.getJobCount() > 0)
+        {
+            if (System.currentTimeMillis() >= deadline)
+            {
+                return false;
+            }
+            Thread.sleep(100);
+        }
+        return true;
+    }
+
+    /**
+     * Kills a running job step.
+     *
+     * @param step_id
+     */
+    static void killStep(final int step_id)
+    {
+        if (JobRegistry.INSTANCE.killStep(step_id))
+        {
+            Config.INSTANCE.logger.info("Killing step_id: {}.", step_id);
+        }
+        else
+        {
+            Config.INSTANCE.logger.info("Kill request for step_id: {} was submitted, but the step was not running.", step_id);
+        }
+    }
+
+    /**
+     * Logs the jobs and job steps running on this agent.
+     */
+    static void logStatus()
+    {
+        final List<JobRegistry.RunningTask> snapshot = JobRegistry.INSTANCE.getSnapshot();
+        Config.INSTANCE.logger.info("Status: {}, {} job(s) running.", draining ? "draining" : paused ? "paused" : "running", JobRegistry.INSTANCE.getJobCount());
+        for (JobRegistry.RunningTask running_task : snapshot)
+        {
+            Config.INSTANCE.logger.info("Running {}", running_task);
+        }
+        Config.INSTANCE.logger.info("Start lag p50: {} ms, p99: {} ms, max: {} ms over {} job(s).",
+                Metrics.INSTANCE.job_start_lag.getPercentile(50),
+                Metrics.INSTANCE.job_start_lag.getPercentile(99),
+                Metrics.INSTANCE.job_start_lag.getPercentile(100),
+                Metrics.INSTANCE.job_start_lag.getCount());
+    }
+
+    /**
+     * Requests the cleanup and registration of this agent be run again on the next pass of the main loop.
+     */
+    static void requestCleanup()
+    {
+        run_cleanup = true;
     }
 
     private static void runJobs() throws Exception
     {
         Config.INSTANCE.logger.debug("Running jobs begin.");
         final String get_job_sql =
-                "UPDATE pgagent.pga_job " +
+                "UPDATE pgagent.pga_job J " +
                         "SET jobagentid=?, joblastrun=now() " +
+                        // The previous last run is returned, to be restored if the job is deferred.
+                        "FROM (" +
+                        "SELECT jobid, joblastrun AS previous_lastrun " +
+                        "FROM pgagent.pga_job " +
                         "WHERE jobenabled " +
                         "AND jobagentid IS NULL " +
                         "AND jobnextrun <= now() " +
+                        // Deterministic per job offset to spread out jobs sharing a schedule.
+                        "AND jobnextrun <= now() - ((jobid::bigint * 2654435761) % greatest(?, 1)) * interval '1 millisecond' " +
                         "AND (jobhostagent = '' OR jobhostagent = ?) " +
-                        "RETURNING jobid; ";
-
+                        // Only the jobs owned by this agent when sharding.
+                        "AND (?::integer[] IS NULL OR jobid = ANY(?::integer[])) " +
+                        "ORDER BY jobnextrun " +
+                        "LIMIT ?) D " +
+                        "WHERE J.jobid = D.jobid " +
+                        "AND J.jobagentid IS NULL " +
+                        // Scheduled time, and how late the job was claimed, measured by the database's clock.
+                        "RETURNING J.jobid, J.jobdesc, (SELECT jclname FROM pgagent.pga_jobclass WHERE jclid = J.jobjclid) AS jclname, " +
+                        "J.jobnextrun, greatest((extract(EPOCH FROM now() - J.jobnextrun) * 1000)::bigint, 0) AS claim_lag, " +
+                        "D.previous_lastrun; ";
+
+        // Don't claim more jobs than the start rate allows.
+        final Integer claim_limit = StartRateLimiter.INSTANCE.getClaimLimit();
+        if (claim_limit != null && claim_limit == 0)
+        {
+            Config.INSTANCE.logger.debug("Start rate limit reached, not claiming jobs.");
+            return;
+        }
 
+        final Array owned_job_ids = getOwnedJobIds();
         try (final PreparedStatement get_job_statement = Database.INSTANCE.getMainConnection().prepareStatement(get_job_sql))
         {
             get_job_statement.setInt(1, Database.INSTANCE.getPid());
-            get_job_statement.setString(2, Config.INSTANCE.hostname);
+            get_job_statement.setLong(2, Config.INSTANCE.start_jitter);
+            get_job_statement.setString(3, Config.INSTANCE.hostname);
+            get_job_statement.setArray(4, owned_job_ids);
+            get_job_statement.setArray(5, owned_job_ids);
+            if (claim_limit == null)
+            {
+                get_job_statement.setNull(6, Types.INTEGER);
+            }
+            else
+            {
+                get_job_statement.setInt(6, claim_limit);
+            }
+            final JfrEvents.JobClaimEvent jfr_event = JfrEvents.available ? new JfrEvents.JobClaimEvent() : null;
+            if (jfr_event != null)
+            {
+                jfr_event.begin();
+            }
+            final long claim_start_nanos = System.nanoTime();
             try (final ResultSet resultSet = get_job_statement.executeQuery())
             {
+                final long claim_nanos = System.nanoTime();
+                Metrics.recordSince(Metrics.INSTANCE.claim_duration, claim_start_nanos);
+                if (jfr_event != null)
+                {
+                    jfr_event.end();
+                }
+                int claimed = 0;
                 while (resultSet.next())
                 {
+                    claimed++;
                     final int job_id = resultSet.getInt("jobid");
-                    final Job job = new Job(job_id);
+                    final Map<String, String> annotations = AnnotationUtil.parseAnnotations(resultSet.getString("jobdesc"));
+                    final String[] mutex_keys = Job.parseMutexKeys(annotations);
+                    final Timestamp previous_lastrun = resultSet.getTimestamp("previous_lastrun");
+                    if (!MutexManager.INSTANCE.tryAcquire(mutex_keys, job_id))
+                    {
+                        Config.INSTANCE.logger.info("Deferring job_id: {}, a mutex key it requires is held.", job_id);
+                        releaseJob(job_id, previous_lastrun);
+                        continue;
+                    }
+                    String start_rate_group = Job.parseStartRateGroup(annotations);
+                    if (start_rate_group == null)
+                    {
+                        start_rate_group = resultSet.getString("jclname");
+                    }
+                    if (!StartRateLimiter.INSTANCE.tryAcquire(start_rate_group))
+                    {
+                        Config.INSTANCE.logger.debug("Deferring job_id: {}, start rate limit reached.", job_id);
+                        MutexManager.INSTANCE.release(mutex_keys, job_id);
+                        releaseJob(job_id, previous_lastrun);
+                        continue;
+                    }
+                    final Timestamp scheduled_time = resultSet.getTimestamp("jobnextrun");
+                    final Job job = new Job(job_id, scheduled_time == null ? 0 : scheduled_time.getTime(), resultSet.getLong("claim_lag"), claim_nanos);
                     Config.INSTANCE.logger.debug("Submitting job_id {} for execution.", job_id);
-                    job_future_map.put(job_id, ThreadFactory.INSTANCE.submitTask(job));
+                    JobRegistry.INSTANCE.submitJob(job_id, job.getJobName(), job);
+                    Metrics.INSTANCE.jobs_started.increment();
+                }
+                Metrics.INSTANCE.jobs_claimed.record(claimed);
+                if (jfr_event != null)
+                {
+                    jfr_event.claimed = claimed;
+                    jfr_event.commit();
                 }
             }
         }
@@ -275,6 +508,76 @@ public class JPGAgent
         Config.INSTANCE.logger.debug("Running jobs complete.");
     }
 
+    /**
+     * Returns the ids of the due jobs this agent owns when sharding is enabled, or null if it isn't.
+     * Jobs owned by other agents are included once they are overdue by more than --shard-steal-after,
+     * so work owned by an agent which stopped claiming is still picked up.
+     *
+     * @return
+     */
+    private static Array getOwnedJobIds() throws Exception
+    {
+        if (!Sharding.INSTANCE.isEnabled())
+        {
+            return null;
+        }
+
+        Sharding.INSTANCE.refreshAgents();
+
+        final String due_job_sql =
+                "SELECT jobid " +
+                        ", jobnextrun <= now() - ? * interval '1 millisecond' AS overdue " +
+                        "FROM pgagent.pga_job " +
+                        "WHERE jobenabled " +
+                        "AND jobagentid IS NULL " +
+                        "AND jobnextrun <= now() " +
+                        "AND (jobhostagent = '' OR jobhostagent = ?);";
+
+        final List<Integer> owned_job_ids = new ArrayList<>();
+        try (final PreparedStatement due_job_statement = Database.INSTANCE.getMainConnection().prepareStatement(due_job_sql))
+        {
+            due_job_statement.setLong(1, Config.INSTANCE.shard_steal_after);
+            due_job_statement.setString(2, Config.INSTANCE.hostname);
+            try (final ResultSet result_set = due_job_statement.executeQuery())
+            {
+                while (result_set.next())
+                {
+                    final int job_id = result_set.getInt("jobid");
+                    if (result_set.getBoolean("overdue") || Sharding.INSTANCE.isOwner(job_id))
+                    {
+                        owned_job_ids.add(job_id);
+                    }
+                }
+            }
+        }
+        Config.INSTANCE.logger.debug("Sharding, this agent owns {} due job(s).", owned_job_ids.size());
+        return Database.INSTANCE.getMainConnection().createArrayOf("integer", owned_job_ids.toArray());
+    }
+
+    /**
+     * Gives up the claim on a job without running it, leaving it due so it is picked up on a later poll.
+     * The last run set by the claim is put back, as the job didn't run.
+     *
+     * @param job_id
+     * @param previous_lastrun joblastrun of the job before it was claimed.
+     */
+    private static void releaseJob(final int job_id, final Timestamp previous_lastrun) throws Exception
+    {
+        final String release_job_sql =
+                "UPDATE pgagent.pga_job " +
+                        "SET jobagentid=NULL, joblastrun=? " +
+                        "WHERE jobid = ? " +
+                        "AND jobagentid = ?;";
+
+        try (final PreparedStatement release_job_statement = Database.INSTANCE.getMainConnection().prepareStatement(release_job_sql))
+        {
+            release_job_statement.setTimestamp(1, previous_lastrun);
+            release_job_statement.setInt(2, job_id);
+            release_job_statement.setInt(3, Database.INSTANCE.getPid());
+            release_job_statement.execute();
+        }
+    }
+
     /**
      * Sets the arguments passed in from command line.
      * Returns true if successful, false if it encountered an error.
@@ -309,6 +612,13 @@ public class JPGAgent
             return false;
         }
 
+        if(Config.INSTANCE.agent_lease <= Config.INSTANCE.heartbeat_interval)
+        {
+            Config.INSTANCE.logger.error("The agent lease must be longer than the heartbeat interval.");
+            parser.printUsage(System.out);
+            return false;
+        }
+
         try
         {
             Config.INSTANCE.hostname = InetAddress.getLocalHost().getCanonicalHostName();
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder events for the job lifecycle, so recordings show which job and step a thread was working on.
+ * Events cost next to nothing unless a recording enables them.  jdk.jfr is missing from Java 8 before 8u262, so
+ * events must only be created when {@link #available} is true; the event classes are never loaded otherwise.
+ */
+public final class JfrEvents
+{
+    public static final boolean available = isAvailable();
+
+    private JfrEvents()
+    {
+    }
+
+    private static boolean isAvailable()
+    {
+        try
+        {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        }
+        catch (final ClassNotFoundException | LinkageError e)
+        {
+            return false;
+        }
+    }
+
+    @Name("jpgagent.JobClaim")
+    @Label("Job Claim")
+    @Description("Query claiming due jobs")
+    @Category("jpgAgent")
+    @StackTrace(false)
+    public static class JobClaimEvent extends Event
+    {
+        @Label("Jobs Claimed")
+        public int claimed;
+    }
+
+    @Name("jpgagent.JobConstruction")
+    @Label("Job Construction")
+    @Description("Loading a claimed job's definition and creating its log")
+    @Category("jpgAgent")
+    @StackTrace(false)
+    public static class JobConstructionEvent extends Event
+    {
+        @Label("Job Id")
+        public int job_id;
+        @Label("Job Log Id")
+        public int job_log_id;
+    }
+
+    @Name("jpgagent.Job")
+    @Label("Job")
+    @Description("A job running, from start to finish")
+    @Category("jpgAgent")
+    @StackTrace(false)
+    public static class JobEvent extends Event
+    {
+        @Label("Job Id")
+        public int job_id;
+        @Label("Job Name")
+        public String job_name;
+        @Label("Status")
+        public String status;
+    }
+
+    @Name("jpgagent.JobStep")
+    @Label("Job Step")
+    @Description("A job step running, from start to finish")
+    @Category("jpgAgent")
+    @StackTrace(false)
+    public static class JobStepEvent extends Event
+    {
+        @Label("Job Id")
+        public int job_id;
+        @Label("Step Id")
+        public int step_id;
+        @Label("Step Name")
+        public String step_name;
+        @Label("Step Type")
+        public String step_type;
+        @Label("Status")
+        public String status;
+    }
+
+    @Name("jpgagent.ConnectionAcquire")
+    @Label("Connection Acquire")
+    @Description("Opening a database connection")
+    @Category("jpgAgent")
+    public static class ConnectionAcquireEvent extends Event
+    {
+        @Label("Host")
+        public String host;
+        @Label("Database")
+        public String database;
+    }
+
+    @Name("jpgagent.ProcessSpawn")
+    @Label("Process Spawn")
+    @Description("Starting the process of a batch job step")
+    @Category("jpgAgent")
+    @StackTrace(false)
+    public static class ProcessSpawnEvent extends Event
+    {
+        @Label("Job Id")
+        public int job_id;
+        @Label("Step Id")
+        public int step_id;
+    }
+
+    @Name("jpgagent.LogWrite")
+    @Label("Log Write")
+    @Description("Writing a job or job step outcome to the database")
+    @Category("jpgAgent")
+    @StackTrace(false)
+    public static class LogWriteEvent extends Event
+    {
+        @Label("Event")
+        public String event;
+        @Label("Job Id")
+        public int job_id;
+        @Label("Step Id")
+        public int step_id;
+        @Label("Status")
+        public String status;
+    }
+
+    @Name("jpgagent.EmailSend")
+    @Label("Email Send")
+    @Description("Sending a batch of email over smtp")
+    @Category("jpgAgent")
+    @StackTrace(false)
+    public static class EmailSendEvent extends Event
+    {
+        @Label("Emails")
+        public int emails;
+        @Label("Sent")
+        public int sent;
+    }
+}
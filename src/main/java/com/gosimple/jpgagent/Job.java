@@ -22,13 +22,19 @@
 
 package com.gosimple.jpgagent;
 
+import org.slf4j.MDC;
+
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
 
 public class Job implements CancellableRunnable
@@ -39,8 +45,25 @@ public class Job implements CancellableRunnable
     private String job_comment;
     private JobStatus job_status;
     final List<JobStep> job_step_list = new ArrayList<>();
-    private final Map<JobStep, Future<?>> future_map = new HashMap<>();
+    private final Map<JobStep, Future<?>> future_map = new ConcurrentHashMap<>();
+    private final Map<JobStep, String[]> step_mutex_map = new HashMap<>();
     private Long start_time;
+    // Pid of the agent connection the job was claimed with
+    private final int agent_pid;
+    // When the job log was created, used to compute the logged duration
+    private final long log_start_time;
+    // When the job was scheduled to run (jobnextrun), in ms since the epoch
+    private final long scheduled_time;
+    // How late the job was claimed (ms), measured by the database
+    private final long claim_lag;
+    // System.nanoTime() when the job was claimed
+    private final long claim_nanos;
+    // How late the job started (ms)
+    private long start_lag;
+    // Time (ms) between the job being claimed and starting
+    private long queue_wait;
+    // Trace span covering the job, from being claimed to finishing
+    private final Span span;
     /*
      * Annotation settings
      */
@@ -51,14 +74,38 @@ public class Job implements CancellableRunnable
     // Email to list
     private String[] email_to = null;
     // Email subject
-    private String email_subject = null;
+    private EmailTemplate email_subject = EmailTemplate.compile(null);
     // Email body
-    private String email_body = null;
+    private EmailTemplate email_body = EmailTemplate.compile(null);
+    // If false, email is always sent right away instead of being held for a digest
+    private Boolean email_digest = true;
+    // Notification sinks to notify through
+    private String[] notify_via = {SmtpSink.NAME};
+    // Mutual exclusion keys held while the job runs
+    private String[] mutex_keys = null;
 
 
-    public Job(final int job_id)
+    /**
+     * @param job_id
+     * @param scheduled_time jobnextrun of the claimed job, in ms since the epoch.
+     * @param claim_lag      how late (ms) the job was claimed.
+     * @param claim_nanos    System.nanoTime() when the job was claimed.
+     */
+    public Job(final int job_id, final long scheduled_time, final long claim_lag, final long claim_nanos)
     {
         this.job_id = job_id;
+        this.scheduled_time = scheduled_time;
+        this.claim_lag = claim_lag;
+        this.claim_nanos = claim_nanos;
+        final JfrEvents.JobConstructionEvent jfr_event = JfrEvents.available ? new JfrEvents.JobConstructionEvent() : null;
+        if (jfr_event != null)
+        {
+            jfr_event.begin();
+        }
+        this.agent_pid = Database.INSTANCE.getPid();
+        MDC.put("job_id", String.valueOf(job_id));
+        this.span = Tracer.INSTANCE.startJobSpan(job_id);
+        final Span load_span = span.child("load definition");
         Config.INSTANCE.logger.debug("Instantiating Job begin.");
         final String job_sql =
                 "SELECT jobname " +
@@ -85,7 +132,9 @@ public class Job implements CancellableRunnable
         }
 
         processAnnotations();
+        load_span.end();
 
+        final Span log_span = span.child("log insert");
         final String log_sql =
                 "INSERT INTO pgagent.pga_joblog(jlgjobid, jlgstatus) " +
                 "VALUES (?, ?) " +
@@ -108,18 +157,40 @@ public class Job implements CancellableRunnable
         {
             Config.INSTANCE.logger.error(e.getMessage());
         }
+        log_span.end();
+        this.log_start_time = System.currentTimeMillis();
 
+        final Span steps_span = span.child("load steps");
         buildSteps();
+        steps_span.end();
+        span.arg("job_name", job_name).arg("job_log_id", job_log_id);
+        if (jfr_event != null)
+        {
+            jfr_event.job_id = job_id;
+            jfr_event.job_log_id = job_log_id;
+            jfr_event.commit();
+        }
         Config.INSTANCE.logger.debug("Job instantiation complete.");
+        MDC.remove("job_id");
     }
 
 
     public void run()
     {
+        final JfrEvents.JobEvent jfr_event = JfrEvents.available ? new JfrEvents.JobEvent() : null;
+        if (jfr_event != null)
+        {
+            jfr_event.begin();
+        }
+        final Span run_span = span.child("run");
         try
         {
-            Config.INSTANCE.logger.info("Job id: {} started.", job_id);
             this.start_time = System.currentTimeMillis();
+            this.queue_wait = (System.nanoTime() - claim_nanos) / 1000000;
+            this.start_lag = claim_lag + queue_wait;
+            Metrics.INSTANCE.job_queue_wait.record(queue_wait);
+            Metrics.INSTANCE.job_start_lag.record(start_lag);
+            Config.INSTANCE.logger.info("Job id: {} started {} ms late.", job_id, start_lag);
             boolean failed_step = false;
             try
             {
@@ -130,15 +201,18 @@ public class Job implements CancellableRunnable
                         // Block until all steps submitted before are done.
                         waitOnRunningJobSteps();
                     }
+                    // Block until the step's mutex keys are free.
+                    waitOnJobStepMutex(job_step);
                     // Submit task.
-                    future_map.put(job_step, ThreadFactory.INSTANCE.submitTask(job_step));
+                    job_step.setParentSpan(span);
+                    future_map.put(job_step, JobRegistry.INSTANCE.submitStep(job_id, job_step.getStepId(), job_step.getStepName(), job_step));
                 }
                 // Block until all JobSteps are done.
                 waitOnRunningJobSteps();
 
                 for (JobStep job_step : job_step_list)
                 {
-                    if (job_step.getStepStatus().equals(JobStep.StepStatus.FAIL)
+                    if (JobStep.StepStatus.FAIL.equals(job_step.getStepStatus())
                             && job_step.getOnError().equals(JobStep.OnError.FAIL))
                     {
                         failed_step = true;
@@ -167,40 +241,53 @@ public class Job implements CancellableRunnable
             job_status = JobStatus.FAIL;
             Config.INSTANCE.logger.error(e.getMessage());
         }
-
-        final String update_log_sql =
-                "UPDATE pgagent.pga_joblog SET jlgstatus = ?, jlgduration=now() - jlgstart " +
-                        "WHERE jlgid = ?;";
-        final String update_job_sql =
-                "UPDATE pgagent.pga_job SET jobagentid=NULL, jobnextrun=NULL " +
-                        "WHERE jobid = ?;";
-        try (final PreparedStatement update_job_statement = Database.INSTANCE.getMainConnection().prepareStatement(update_job_sql);
-             final PreparedStatement update_log_statement = Database.INSTANCE.getMainConnection().prepareStatement(update_log_sql))
+        finally
         {
-            update_job_statement.setInt(1, job_id);
-            update_job_statement.execute();
+            releaseJobStepMutexes(true);
+            MutexManager.INSTANCE.release(mutex_keys, job_id);
+            run_span.end();
+        }
 
-            update_log_statement.setString(1, this.job_status.getDbRepresentation());
-            update_log_statement.setInt(2, this.job_log_id);
-            update_log_statement.execute();
+        // Spooled so the outcome survives an unreachable database.
+        LogSpool.INSTANCE.submit(LogEvent.jobRelease(job_id, agent_pid));
+        LogSpool.INSTANCE.submit(LogEvent.jobLogFinish(job_id, job_log_id, job_status.getDbRepresentation(), System.currentTimeMillis() - log_start_time));
+        if (jfr_event != null)
+        {
+            jfr_event.job_id = job_id;
+            jfr_event.job_name = job_name;
+            jfr_event.status = job_status.name();
+            jfr_event.commit();
         }
-        catch (SQLException e)
+        if (start_time != null)
         {
-            Config.INSTANCE.logger.error(e.getMessage());
+            // Time from when the job was scheduled to when it finished.
+            final long end_to_end = start_lag + System.currentTimeMillis() - start_time;
+            Metrics.INSTANCE.job_end_to_end.record(end_to_end);
+            if (Config.INSTANCE.run_stats)
+            {
+                LogSpool.INSTANCE.submit(LogEvent.jobRunStats(job_id, job_log_id, scheduled_time, start_lag, queue_wait, end_to_end));
+            }
         }
 
         if(email_on.contains(job_status))
         {
             // Token replacement
-            email_subject = email_subject.replaceAll(Config.INSTANCE.status_token, job_status.name());
-            email_body = email_body.replaceAll(Config.INSTANCE.status_token, job_status.name());
-
-            email_subject = email_subject.replaceAll(Config.INSTANCE.job_name_token, job_name);
-            email_body = email_body.replaceAll(Config.INSTANCE.job_name_token, job_name);
+            final Map<String, String> token_values = new HashMap<>();
+            token_values.put(Config.INSTANCE.status_token, job_status.name());
+            token_values.put(Config.INSTANCE.job_name_token, job_name);
+            token_values.put(Config.INSTANCE.host_token, Config.INSTANCE.hostname);
+            if (start_time != null)
+            {
+                token_values.put(Config.INSTANCE.start_time_token, new Timestamp(start_time).toString());
+                token_values.put(Config.INSTANCE.duration_token, EmailTemplate.formatDuration(System.currentTimeMillis() - start_time));
+            }
 
-            // Send email
-            EmailUtil.sendEmailFromNoReply(email_to, email_subject, email_body);
+            // Send notifications
+            final Span notify_span = span.child("notify");
+            Notifier.INSTANCE.send(notify_via, new Notification(email_to, email_subject.render(token_values), email_body.renderHtml(token_values), token_values), email_digest);
+            notify_span.end();
         }
+        span.arg("status", job_status.name()).end();
         Config.INSTANCE.logger.info("Job id: {} complete.", job_id);
     }
 
@@ -281,12 +368,21 @@ public class Job implements CancellableRunnable
             }
             if (annotations.containsKey(JobAnnotations.EMAIL_SUBJECT.name()))
             {
-                email_subject = AnnotationUtil.parseValue(JobAnnotations.EMAIL_SUBJECT, annotations.get(JobAnnotations.EMAIL_SUBJECT.name()), String.class);
+                email_subject = EmailTemplate.compile(AnnotationUtil.parseValue(JobAnnotations.EMAIL_SUBJECT, annotations.get(JobAnnotations.EMAIL_SUBJECT.name()), String.class));
             }
             if (annotations.containsKey(JobAnnotations.EMAIL_BODY.name()))
             {
-                email_body = AnnotationUtil.parseValue(JobAnnotations.EMAIL_BODY, annotations.get(JobAnnotations.EMAIL_BODY.name()), String.class);
+                email_body = EmailTemplate.compile(AnnotationUtil.parseValue(JobAnnotations.EMAIL_BODY, annotations.get(JobAnnotations.EMAIL_BODY.name()), String.class));
+            }
+            if (annotations.containsKey(JobAnnotations.EMAIL_DIGEST.name()))
+            {
+                email_digest = AnnotationUtil.parseValue(JobAnnotations.EMAIL_DIGEST, annotations.get(JobAnnotations.EMAIL_DIGEST.name()), Boolean.class);
+            }
+            if (annotations.containsKey(JobAnnotations.NOTIFY_VIA.name()))
+            {
+                notify_via = AnnotationUtil.parseValue(JobAnnotations.NOTIFY_VIA, annotations.get(JobAnnotations.NOTIFY_VIA.name()), String.class).split(";");
             }
+            mutex_keys = parseMutexKeys(annotations);
         }
         catch (Exception e)
         {
@@ -294,6 +390,96 @@ public class Job implements CancellableRunnable
         }
     }
 
+    /**
+     * Parses the mutex keys out of the annotations of a job.
+     * Returns null if there are none.
+     * @param annotations
+     * @return
+     */
+    protected static String[] parseMutexKeys(final Map<String, String> annotations)
+    {
+        if (annotations.containsKey(JobAnnotations.MUTEX.name()))
+        {
+            final String value = AnnotationUtil.parseValue(JobAnnotations.MUTEX, annotations.get(JobAnnotations.MUTEX.name()), String.class);
+            if (value != null)
+            {
+                return value.split(";");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parses the start rate group out of the annotations of a job.
+     * Returns null if there is none.
+     * @param annotations
+     * @return
+     */
+    protected static String parseStartRateGroup(final Map<String, String> annotations)
+    {
+        if (annotations.containsKey(JobAnnotations.START_RATE_GROUP.name()))
+        {
+            return AnnotationUtil.parseValue(JobAnnotations.START_RATE_GROUP, annotations.get(JobAnnotations.START_RATE_GROUP.name()), String.class);
+        }
+        return null;
+    }
+
+    /**
+     * Waits until all mutex keys of the job step are acquired, and responds to timeouts.
+     * The job's own keys are already held, so they are skipped for the step.
+     * @param job_step
+     * @throws InterruptedException
+     */
+    private void waitOnJobStepMutex(final JobStep job_step) throws InterruptedException
+    {
+        if (job_step.getMutexKeys() == null)
+        {
+            return;
+        }
+
+        final List<String> step_keys = new ArrayList<>();
+        for (String key : job_step.getMutexKeys())
+        {
+            if (mutex_keys == null || !Arrays.asList(mutex_keys).contains(key))
+            {
+                step_keys.add(key);
+            }
+        }
+        final String[] keys = step_keys.toArray(new String[step_keys.size()]);
+
+        while (!MutexManager.INSTANCE.tryAcquire(keys, job_id))
+        {
+            releaseJobStepMutexes(false);
+            submittedJobStepTimeout();
+            if(isTimedOut())
+            {
+                cancelTask();
+                Thread.currentThread().interrupt();
+            }
+            Thread.sleep(200);
+        }
+        step_mutex_map.put(job_step, keys);
+    }
+
+    /**
+     * Releases the mutex keys held for job steps.
+     * @param all if false, only release the keys of job steps which are done.
+     */
+    private void releaseJobStepMutexes(final boolean all)
+    {
+        final Iterator<Map.Entry<JobStep, String[]>> iterator = step_mutex_map.entrySet().iterator();
+        while (iterator.hasNext())
+        {
+            final Map.Entry<JobStep, String[]> entry = iterator.next();
+            final Future<?> future = future_map.get(entry.getKey());
+            if (all || future == null || future.isDone())
+            {
+                MutexManager.INSTANCE.release(entry.getValue(), job_id);
+                iterator.remove();
+            }
+        }
+    }
+
     /**
      * Waits on job steps that are running and responds to timeouts.
      * @throws InterruptedException
@@ -302,6 +488,7 @@ public class Job implements CancellableRunnable
     {
         while(submittedJobStepsRunning())
         {
+            releaseJobStepMutexes(false);
             submittedJobStepTimeout();
             if(isTimedOut())
             {
@@ -345,6 +532,15 @@ public class Job implements CancellableRunnable
         }
     }
 
+    /**
+     * Gets the name of the Job.
+     * @return
+     */
+    public String getJobName()
+    {
+        return job_name;
+    }
+
     /**
      * Returns if the job is timed out or not.
      * @return
@@ -376,6 +572,21 @@ public class Job implements CancellableRunnable
         }
     }
 
+    /**
+     * Releases the job when it was killed while still queued.  Its mutex keys and claim were taken when it was
+     * dispatched, and its log was inserted when it was built.
+     */
+    @Override
+    public void cancelledBeforeStart()
+    {
+        job_status = JobStatus.ABORTED;
+        MutexManager.INSTANCE.release(mutex_keys, job_id);
+        LogSpool.INSTANCE.submit(LogEvent.jobRelease(job_id, agent_pid));
+        LogSpool.INSTANCE.submit(LogEvent.jobLogFinish(job_id, job_log_id, job_status.getDbRepresentation(), System.currentTimeMillis() - log_start_time));
+        span.arg("status", job_status.name()).end();
+        Config.INSTANCE.logger.info("Job id: {} killed before it started.", job_id);
+    }
+
     protected enum JobStatus
     {
         RUNNING("r"),
@@ -415,7 +626,13 @@ public class Job implements CancellableRunnable
         EMAIL_ON(String.class),
         EMAIL_SUBJECT(String.class),
         EMAIL_BODY(String.class),
-        EMAIL_TO(String.class);
+        EMAIL_TO(String.class),
+        EMAIL_DIGEST(Boolean.class),
+        NOTIFY_VIA(String.class),
+        MUTEX(String.class),
+        START_RATE_GROUP(String.class),
+        LOG_RETENTION_AGE(Long.class),
+        LOG_RETENTION_COUNT(Integer.class);
 
         final Class<?> annotation_value_type;
 
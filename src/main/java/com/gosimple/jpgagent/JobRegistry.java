@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import org.slf4j.MDC;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Registry of the jobs and job steps running on this agent, keyed by job id and step id.
+ * Tasks are registered before they are submitted to the thread pool and removed as soon as they finish, so lookups
+ * for kills are constant time and the registry only ever holds what is running.
+ */
+public enum JobRegistry
+{
+    INSTANCE;
+
+    private final Map<Integer, RunningTask> jobs = new ConcurrentHashMap<>();
+    private final Map<Integer, RunningTask> steps = new ConcurrentHashMap<>();
+
+    /**
+     * Registers a job and submits it to the thread pool.
+     *
+     * @param job_id
+     * @param job_name
+     * @param job
+     * @return
+     */
+    public Future<?> submitJob(final int job_id, final String job_name, final CancellableRunnable job)
+    {
+        return submit(jobs, job_id, new RunningTask(job_id, 0, job_name, job));
+    }
+
+    /**
+     * Registers a job step and submits it to the thread pool.
+     *
+     * @param job_id
+     * @param step_id
+     * @param step_name
+     * @param job_step
+     * @return
+     */
+    public Future<?> submitStep(final int job_id, final int step_id, final String step_name, final CancellableRunnable job_step)
+    {
+        return submit(steps, step_id, new RunningTask(job_id, step_id, step_name, job_step));
+    }
+
+    private Future<?> submit(final Map<Integer, RunningTask> registry, final int id, final RunningTask running_task)
+    {
+        final FutureTask<Void> future = new FutureTask<Void>(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                running_task.started = true;
+                // Log events of the task carry its ids.
+                MDC.put("job_id", String.valueOf(running_task.job_id));
+                if (running_task.step_id != 0)
+                {
+                    MDC.put("step_id", String.valueOf(running_task.step_id));
+                }
+                try
+                {
+                    running_task.task.run();
+                }
+                finally
+                {
+                    MDC.clear();
+                    registry.remove(id, running_task);
+                }
+            }
+        }, null)
+        {
+            @Override
+            public boolean cancel(final boolean may_interrupt)
+            {
+                final boolean cancelled = super.cancel(may_interrupt);
+                running_task.task.cancelTask();
+                return cancelled;
+            }
+
+            @Override
+            protected void done()
+            {
+                if (!running_task.started)
+                {
+                    // Cancelled before it ran, so it will never remove itself or clean up after itself.
+                    registry.remove(id, running_task);
+                    running_task.task.cancelledBeforeStart();
+                }
+            }
+        };
+        // Published with its future, so it can be killed as soon as it's registered.
+        running_task.future = future;
+        registry.put(id, running_task);
+        ThreadFactory.INSTANCE.executeTask(future);
+        return future;
+    }
+
+    /**
+     * Kills a running job.
+     *
+     * @param job_id
+     * @return true if the job was running.
+     */
+    public boolean killJob(final int job_id)
+    {
+        return kill(jobs.get(job_id));
+    }
+
+    /**
+     * Kills a running job step.
+     *
+     * @param step_id
+     * @return true if the step was running.
+     */
+    public boolean killStep(final int step_id)
+    {
+        return kill(steps.get(step_id));
+    }
+
+    private boolean kill(final RunningTask running_task)
+    {
+        if (running_task == null || running_task.future.isDone())
+        {
+            return false;
+        }
+        running_task.future.cancel(true);
+        return true;
+    }
+
+    /**
+     * Kills every running job.
+     */
+    public void killAll()
+    {
+        for (RunningTask running_task : jobs.values())
+        {
+            kill(running_task);
+        }
+    }
+
+    /**
+     * @return number of jobs running.
+     */
+    public int getJobCount()
+    {
+        return jobs.size();
+    }
+
+    /**
+     * Returns the running jobs and job steps, longest running first.
+     *
+     * @return
+     */
+    public List<RunningTask> getSnapshot()
+    {
+        final List<RunningTask> snapshot = new ArrayList<>(jobs.values());
+        snapshot.addAll(steps.values());
+        Collections.sort(snapshot, new Comparator<RunningTask>()
+        {
+            @Override
+            public int compare(final RunningTask o1, final RunningTask o2)
+            {
+                return Long.compare(o1.start_time, o2.start_time);
+            }
+        });
+        return snapshot;
+    }
+
+    /**
+     * A job or job step registered as running.
+     */
+    public static class RunningTask
+    {
+        private final int job_id;
+        private final int step_id;
+        private final String name;
+        private final long start_time = System.currentTimeMillis();
+        private final CancellableRunnable task;
+        private volatile Future<?> future;
+        private volatile boolean started = false;
+
+        private RunningTask(final int job_id, final int step_id, final String name, final CancellableRunnable task)
+        {
+            this.job_id = job_id;
+            this.step_id = step_id;
+            this.name = name;
+            this.task = task;
+        }
+
+        public int getJobId()
+        {
+            return job_id;
+        }
+
+        /**
+         * @return 0 for a job.
+         */
+        public int getStepId()
+        {
+            return step_id;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        /**
+         * @return when the task was dispatched, in epoch milliseconds.
+         */
+        public long getStartTime()
+        {
+            return start_time;
+        }
+
+        /**
+         * @return milliseconds since the task was dispatched.
+         */
+        public long getElapsed()
+        {
+            return System.currentTimeMillis() - start_time;
+        }
+
+        @Override
+        public String toString()
+        {
+            return (step_id == 0 ? "job_id: " + job_id : "job_id: " + job_id + " step_id: " + step_id)
+                    + " name: " + name
+                    + " started: " + new Timestamp(start_time)
+                    + " elapsed: " + getElapsed() + " ms";
+        }
+    }
+}
@@ -26,6 +26,7 @@ package com.gosimple.jpgagent;
 import java.io.*;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -51,6 +52,8 @@ public class JobStep implements CancellableRunnable
     private Statement running_statement;
     private Process running_process;
     private Long start_time;
+    // Span of the job, parent of this step's span
+    private Span parent_span = Span.NONE;
 
     /*
     * Annotation set parameters.
@@ -69,14 +72,22 @@ public class JobStep implements CancellableRunnable
     private String database_password = null;
     // Database auth query
     private String database_auth_query = null;
+    // If true, runs on a read only connection, on a replica if any are configured.
+    private boolean read_only = false;
     // List of status to send an email on
     private List<StepStatus> email_on = new ArrayList<>();
     // Email to list
     private String[] email_to = null;
     // Email subject
-    private String email_subject = null;
+    private EmailTemplate email_subject = EmailTemplate.compile(null);
     // Email body
-    private String email_body = null;
+    private EmailTemplate email_body = EmailTemplate.compile(null);
+    // If false, email is always sent right away instead of being held for a digest
+    private Boolean email_digest = true;
+    // Notification sinks to notify through
+    private String[] notify_via = {SmtpSink.NAME};
+    // Mutual exclusion keys held while the step runs
+    private String[] mutex_keys = null;
 
     public JobStep(final int job_log_id, final int job_id, final String job_name, final int step_id, final String step_name, final String step_description, final StepType step_type, final String code, final String connection_string, final String db_name, final OnError on_error)
     {
@@ -105,9 +116,58 @@ public class JobStep implements CancellableRunnable
         processAnnotations();
     }
 
+    /**
+     * Sets the span of the job, which this step's span is a child of.
+     *
+     * @param parent_span
+     */
+    void setParentSpan(final Span parent_span)
+    {
+        this.parent_span = parent_span;
+    }
+
     public void run()
     {
+        final Span span = Tracer.INSTANCE.startSpan("step " + step_id, "step", job_id, parent_span);
+        span.arg("step_name", step_name).arg("step_type", step_type.name());
+        final JfrEvents.JobStepEvent jfr_event = JfrEvents.available ? new JfrEvents.JobStepEvent() : null;
+        if (jfr_event != null)
+        {
+            jfr_event.begin();
+        }
         this.start_time = System.currentTimeMillis();
+
+        insertLog(span);
+        switch (step_type)
+        {
+            case SQL:
+            {
+                runSql(span);
+                break;
+            }
+            case BATCH:
+            {
+                runBatch(span);
+                break;
+            }
+        }
+        final long duration = System.currentTimeMillis() - start_time;
+        recordOutcome(jfr_event, duration);
+        if (email_on.contains(step_status))
+        {
+            sendNotifications(span, duration);
+        }
+        span.arg("status", step_status.name()).arg("result", step_result).end();
+    }
+
+    /**
+     * Inserts the running log row for the step.
+     *
+     * @param span
+     */
+    private void insertLog(final Span span)
+    {
+        final Span log_span = span.child("log insert");
         final String log_sql =
                 "INSERT INTO pgagent.pga_jobsteplog(jsljlgid, jsljstid, jslstatus) " +
                 "SELECT ?, ?, ? " +
@@ -129,229 +189,294 @@ public class JobStep implements CancellableRunnable
         {
             Config.INSTANCE.logger.error(e.getMessage());
         }
-        switch (step_type)
+        log_span.end();
+    }
+
+    /**
+     * Runs the step's code as SQL, once for each set of credentials.
+     *
+     * @param span
+     */
+    private void runSql(final Span span)
+    {
+        Config.INSTANCE.logger.debug("Executing SQL step: {}", step_id);
+        try
         {
-            case SQL:
+            // Throw error if attempting to run a job step with "remote" instead of "local"
+            if(connection_string != null && !connection_string.isEmpty())
             {
-                Config.INSTANCE.logger.debug("Executing SQL step: {}", step_id);
-                try
-                {
-                    // Throw error if attempting to run a job step with "remote" instead of "local"
-                    if(connection_string != null && !connection_string.isEmpty())
-                    {
-                        throw new IllegalArgumentException("Remote connection types are not supported by jpgAgent. Please configure your job step to use annotations for remote connections.");
-                    }
-
-                    List<DatabaseAuth> db_auth = new ArrayList<>();
+                throw new IllegalArgumentException("Remote connection types are not supported by jpgAgent. Please configure your job step to use annotations for remote connections.");
+            }
 
-                    // If there is an db_auth query, run it and add all results to the db_auth list
-                    if (database_auth_query != null)
-                    {
-                        try (Connection connection = Database.INSTANCE.getConnection(getHost(), getDatabase()))
-                        {
-                            try (Statement statement = connection.createStatement())
-                            {
-                                this.running_statement = statement;
-                                try(ResultSet result = statement.executeQuery(database_auth_query))
-                                {
-                                    while(result.next())
-                                    {
-                                        db_auth.add(new DatabaseAuth(result.getString(1), result.getString(2)));
-                                    }
-                                }
-                                this.running_statement = null;
-                            }
-                        }
-                    }
-                    // If there were explicit credentials passed in, add them to the db_auth list.
-                    if(database_login != null || database_password != null)
-                    {
-                        db_auth.add(new DatabaseAuth(database_login, database_password));
-                    }
-                    // If nothing else was added to the auth list so far, add the configured jpgAgent credentials.
-                    if(db_auth.size() == 0)
-                    {
-                        db_auth.add(new DatabaseAuth(Config.INSTANCE.db_user, Config.INSTANCE.db_password));
-                    }
+            List<DatabaseAuth> db_auth = new ArrayList<>();
 
-                    for(DatabaseAuth auth : db_auth)
+            // If there is an db_auth query, run it and add all results to the db_auth list
+            if (database_auth_query != null)
+            {
+                try (Connection connection = connect(span, Config.INSTANCE.db_user, Config.INSTANCE.db_password);
+                     Statement statement = connection.createStatement())
+                {
+                    final Span auth_span = span.child("auth query");
+                    this.running_statement = statement;
+                    try(ResultSet result = statement.executeQuery(database_auth_query))
                     {
-                        try (Connection connection = Database.INSTANCE.getConnection(getHost(), getDatabase(), auth.getUser(), auth.getPass()))
+                        while(result.next())
                         {
-                            try (Statement statement = connection.createStatement())
-                            {
-                                this.running_statement = statement;
-                                statement.execute(code);
-                                this.running_statement = null;
-                                step_result = 1;
-                                step_status = StepStatus.SUCCEED;
-                            }
+                            db_auth.add(new DatabaseAuth(result.getString(1), result.getString(2)));
                         }
                     }
-                }
-                catch (final Exception e)
-                {
-                    step_output = e.getMessage();
-                    if (Thread.currentThread().isInterrupted())
-                    {
-                        step_result = 0;
-                        step_status = StepStatus.ABORTED;
-                    }
-                    else if (on_error.equals(OnError.FAIL))
-                    {
-                        step_result = -1;
-                        step_status = StepStatus.FAIL;
-                    }
-                    else if (on_error.equals(OnError.IGNORE))
+                    finally
                     {
-                        step_result = -1;
-                        step_status = StepStatus.IGNORE;
-                    }
-                    else if (on_error.equals(OnError.SUCCEED))
-                    {
-                        step_result = -1;
-                        step_status = StepStatus.SUCCEED;
+                        auth_span.end();
                     }
+                    this.running_statement = null;
                 }
-                Config.INSTANCE.logger.debug("SQL step: {} completed successfully.", step_id);
-                break;
             }
-            case BATCH:
+            // If there were explicit credentials passed in, add them to the db_auth list.
+            if(database_login != null || database_password != null)
+            {
+                db_auth.add(new DatabaseAuth(database_login, database_password));
+            }
+            // If nothing else was added to the auth list so far, add the configured jpgAgent credentials.
+            if(db_auth.size() == 0)
             {
-                Config.INSTANCE.logger.debug("Executing Batch step: {}", step_id);
+                db_auth.add(new DatabaseAuth(Config.INSTANCE.db_user, Config.INSTANCE.db_password));
+            }
 
-                try
+            for(DatabaseAuth auth : db_auth)
+            {
+                try (Connection connection = connect(span, auth.getUser(), auth.getPass());
+                     Statement statement = connection.createStatement())
                 {
-                    // Replace line breaks for each OS type.
-                    code = code.replaceAll("\\r\\n|\\r|\\n", System.getProperty("line.separator"));
-
-                    final String fileExtension;
-                    if (os_type.equals(OSType.WIN))
+                    final Span execute_span = span.child("execute");
+                    this.running_statement = statement;
+                    try
                     {
-                        fileExtension = ".bat";
+                        statement.execute(code);
                     }
-                    else
+                    finally
                     {
-                        fileExtension = ".sh";
+                        execute_span.end();
                     }
+                    this.running_statement = null;
+                    step_result = 1;
+                    step_status = StepStatus.SUCCEED;
+                }
+            }
+        }
+        catch (final Exception e)
+        {
+            step_output = e.getMessage();
+            if (Thread.currentThread().isInterrupted())
+            {
+                step_result = 0;
+                step_status = StepStatus.ABORTED;
+            }
+            else if (on_error.equals(OnError.FAIL))
+            {
+                step_result = -1;
+                step_status = StepStatus.FAIL;
+            }
+            else if (on_error.equals(OnError.IGNORE))
+            {
+                step_result = -1;
+                step_status = StepStatus.IGNORE;
+            }
+            else if (on_error.equals(OnError.SUCCEED))
+            {
+                step_result = -1;
+                step_status = StepStatus.SUCCEED;
+            }
+        }
+        Config.INSTANCE.logger.debug("SQL step: {} completed successfully.", step_id);
+    }
 
-                    final File tmp_file_script = File.createTempFile("pga_", fileExtension, null);
-                    tmp_file_script.deleteOnExit();
-                    tmp_file_script.setWritable(true);
-                    tmp_file_script.setExecutable(true);
+    /**
+     * Runs the step's code as a script, capturing its output.
+     *
+     * @param span
+     */
+    private void runBatch(final Span span)
+    {
+        Config.INSTANCE.logger.debug("Executing Batch step: {}", step_id);
 
+        try
+        {
+            // Replace line breaks for each OS type.
+            code = code.replaceAll("\\r\\n|\\r|\\n", System.getProperty("line.separator"));
 
-                    final BufferedWriter buffered_writer = new BufferedWriter(new FileWriter(tmp_file_script));
-                    buffered_writer.write(this.code);
-                    buffered_writer.close();
+            final String fileExtension;
+            if (os_type.equals(OSType.WIN))
+            {
+                fileExtension = ".bat";
+            }
+            else
+            {
+                fileExtension = ".sh";
+            }
 
-                    final ProcessBuilder process_builder = new ProcessBuilder(tmp_file_script.getAbsolutePath());
-                    this.running_process = process_builder.start();
-                    this.running_process.waitFor();
+            final File tmp_file_script = File.createTempFile("pga_", fileExtension, null);
+            tmp_file_script.deleteOnExit();
+            tmp_file_script.setWritable(true);
+            tmp_file_script.setExecutable(true);
 
 
-                    final BufferedReader buffered_reader_out = new BufferedReader(new InputStreamReader(this.running_process.getInputStream()));
-                    final BufferedReader buffered_reader_error = new BufferedReader(new InputStreamReader(this.running_process.getErrorStream()));
-                    final StringBuilder string_builder = new StringBuilder();
-                    String line;
-                    // Get normal output.
-                    while ((line = buffered_reader_out.readLine()) != null)
-                    {
-                        string_builder.append(line);
-                        string_builder.append(System.getProperty("line.separator"));
-                    }
-                    // Get error output.
-                    while ((line = buffered_reader_error.readLine()) != null)
-                    {
-                        string_builder.append(line);
-                        string_builder.append(System.getProperty("line.separator"));
-                    }
+            final BufferedWriter buffered_writer = new BufferedWriter(new FileWriter(tmp_file_script));
+            buffered_writer.write(this.code);
+            buffered_writer.close();
 
-                    tmp_file_script.delete();
-                    this.step_output = string_builder.toString();
-                    this.step_result = running_process.exitValue();
-                    switch (step_result)
-                    {
-                        case 0:
-                        {
-                            step_status = StepStatus.SUCCEED;
-                            break;
-                        }
-                        case 1:
-                        default:
-                        {
-                            step_status = StepStatus.FAIL;
-                            break;
-                        }
-                    }
-                }
-                catch (InterruptedException e)
-                {
-                    this.step_result = running_process.exitValue();
-                    this.step_status = StepStatus.ABORTED;
-                }
-                catch (Exception e)
+            final Span execute_span = span.child("execute");
+            try
+            {
+                this.running_process = startProcess(new ProcessBuilder(tmp_file_script.getAbsolutePath()));
+                this.running_process.waitFor();
+            }
+            finally
+            {
+                execute_span.end();
+            }
+            final Span output_span = span.child("output capture");
+            final String output = readOutput(this.running_process);
+            output_span.end();
+
+            tmp_file_script.delete();
+            this.step_output = output;
+            this.step_result = running_process.exitValue();
+            switch (step_result)
+            {
+                case 0:
                 {
-                    this.step_result = running_process.exitValue();
-                    if (this.on_error.equals(OnError.FAIL))
-                    {
-                        this.step_status = StepStatus.FAIL;
-                    }
-                    else if (this.on_error.equals(OnError.IGNORE))
-                    {
-                        this.step_status = StepStatus.IGNORE;
-                    }
-                    else if (this.on_error.equals(OnError.SUCCEED))
-                    {
-                        this.step_status = StepStatus.SUCCEED;
-                    }
+                    step_status = StepStatus.SUCCEED;
+                    break;
                 }
-                finally
+                case 1:
+                default:
                 {
-                    this.running_process = null;
+                    step_status = StepStatus.FAIL;
+                    break;
                 }
-                Config.INSTANCE.logger.debug("Batch step: {} completed successfully.", step_id);
-                break;
             }
         }
-
-        final String update_log_sql =
-                "UPDATE pgagent.pga_jobsteplog " +
-                        "SET jslduration = now() - jslstart, " +
-                        "jslstatus = ?, " +
-                        "jslresult = ?, " +
-                        "jsloutput = ? " +
-                        "WHERE jslid=?";
-        try (PreparedStatement update_log_statement = Database.INSTANCE.getMainConnection().prepareStatement(update_log_sql))
+        catch (InterruptedException e)
         {
-            update_log_statement.setString(1, this.step_status.getDbRepresentation());
-            update_log_statement.setInt(2, this.step_result);
-            update_log_statement.setString(3, this.step_output);
-            update_log_statement.setInt(4, this.job_step_log_id);
-            update_log_statement.execute();
+            this.step_result = running_process.exitValue();
+            this.step_status = StepStatus.ABORTED;
         }
-        catch (final SQLException e)
+        catch (Exception e)
         {
-            Config.INSTANCE.logger.error(e.getMessage());
+            this.step_result = running_process.exitValue();
+            if (this.on_error.equals(OnError.FAIL))
+            {
+                this.step_status = StepStatus.FAIL;
+            }
+            else if (this.on_error.equals(OnError.IGNORE))
+            {
+                this.step_status = StepStatus.IGNORE;
+            }
+            else if (this.on_error.equals(OnError.SUCCEED))
+            {
+                this.step_status = StepStatus.SUCCEED;
+            }
         }
-
-        if(email_on.contains(step_status))
+        finally
         {
-            // Token replacement
-            email_subject = email_subject.replaceAll(Config.INSTANCE.status_token, step_status.name());
-            email_body = email_body.replaceAll(Config.INSTANCE.status_token, step_status.name());
+            this.running_process = null;
+        }
+        Config.INSTANCE.logger.debug("Batch step: {} completed successfully.", step_id);
+    }
 
-            email_subject = email_subject.replaceAll(Config.INSTANCE.job_name_token, job_name);
-            email_body = email_body.replaceAll(Config.INSTANCE.job_name_token, job_name);
+    /**
+     * Opens a connection for the step, traced as a connect span.
+     *
+     * @param span
+     * @param user
+     * @param password
+     * @return
+     * @throws SQLException
+     */
+    private Connection connect(final Span span, final String user, final String password) throws SQLException
+    {
+        final Span connect_span = span.child("connect");
+        try
+        {
+            return getStepConnection(user, password);
+        }
+        finally
+        {
+            connect_span.end();
+        }
+    }
 
-            email_subject = email_subject.replaceAll(Config.INSTANCE.job_step_name_token, step_name);
-            email_body = email_body.replaceAll(Config.INSTANCE.job_step_name_token, step_name);
+    /**
+     * Starts the step's process, recorded as a process spawn event.
+     *
+     * @param process_builder
+     * @return
+     * @throws IOException
+     */
+    private Process startProcess(final ProcessBuilder process_builder) throws IOException
+    {
+        final JfrEvents.ProcessSpawnEvent spawn_event = JfrEvents.available ? new JfrEvents.ProcessSpawnEvent() : null;
+        if (spawn_event != null)
+        {
+            spawn_event.begin();
+        }
+        final Process process = process_builder.start();
+        if (spawn_event != null)
+        {
+            spawn_event.job_id = job_id;
+            spawn_event.step_id = step_id;
+            spawn_event.commit();
+        }
+        return process;
+    }
 
-            // Send email
-            EmailUtil.sendEmailFromNoReply(email_to, email_subject, email_body);
+    /**
+     * Spools the step's outcome, so it survives an unreachable database, and records its metrics and event.
+     *
+     * @param jfr_event
+     * @param duration
+     */
+    private void recordOutcome(final JfrEvents.JobStepEvent jfr_event, final long duration)
+    {
+        LogSpool.INSTANCE.submit(LogEvent.jobStepLogFinish(job_id, job_log_id, step_id, job_step_log_id, step_status.getDbRepresentation(), step_result, step_output, duration));
+        Metrics.INSTANCE.recordStepDuration(step_type, step_status, duration);
+        if (jfr_event != null)
+        {
+            jfr_event.job_id = job_id;
+            jfr_event.step_id = step_id;
+            jfr_event.step_name = step_name;
+            jfr_event.step_type = step_type.name();
+            jfr_event.status = step_status.name();
+            jfr_event.commit();
         }
     }
 
+    /**
+     * Sends the step's notifications.
+     *
+     * @param span
+     * @param duration
+     */
+    private void sendNotifications(final Span span, final long duration)
+    {
+        // Token replacement
+        final Map<String, String> token_values = new HashMap<>();
+        token_values.put(Config.INSTANCE.status_token, step_status.name());
+        token_values.put(Config.INSTANCE.job_name_token, job_name);
+        token_values.put(Config.INSTANCE.job_step_name_token, step_name);
+        token_values.put(Config.INSTANCE.host_token, Config.INSTANCE.hostname);
+        token_values.put(Config.INSTANCE.start_time_token, new Timestamp(start_time).toString());
+        token_values.put(Config.INSTANCE.duration_token, EmailTemplate.formatDuration(duration));
+        token_values.put(Config.INSTANCE.step_result_token, String.valueOf(step_result));
+        token_values.put(Config.INSTANCE.output_token, EmailTemplate.truncateOutput(step_output));
+
+        // Send notifications
+        final Span notify_span = span.child("notify");
+        Notifier.INSTANCE.send(notify_via, new Notification(email_to, email_subject.render(token_values), email_body.renderHtml(token_values), token_values), email_digest);
+        notify_span.end();
+    }
+
     /**
      * Assign any values from annotations.
      */
@@ -388,6 +513,10 @@ public class JobStep implements CancellableRunnable
             {
                 database_auth_query = AnnotationUtil.parseValue(JobStepAnnotations.DATABASE_AUTH_QUERY, annotations.get(JobStepAnnotations.DATABASE_AUTH_QUERY.name()), String.class);
             }
+            if(annotations.containsKey(JobStepAnnotations.READ_ONLY.name()))
+            {
+                read_only = Boolean.TRUE.equals(AnnotationUtil.parseValue(JobStepAnnotations.READ_ONLY, annotations.get(JobStepAnnotations.READ_ONLY.name()), Boolean.class));
+            }
             if(annotations.containsKey(JobStepAnnotations.EMAIL_ON.name()))
             {
                 for(String email_on_string : AnnotationUtil.parseValue(JobStepAnnotations.EMAIL_ON, annotations.get(JobStepAnnotations.EMAIL_ON.name()), String.class).split(";"))
@@ -401,11 +530,23 @@ public class JobStep implements CancellableRunnable
             }
             if(annotations.containsKey(JobStepAnnotations.EMAIL_SUBJECT.name()))
             {
-                email_subject = AnnotationUtil.parseValue(JobStepAnnotations.EMAIL_SUBJECT, annotations.get(JobStepAnnotations.EMAIL_SUBJECT.name()), String.class);
+                email_subject = EmailTemplate.compile(AnnotationUtil.parseValue(JobStepAnnotations.EMAIL_SUBJECT, annotations.get(JobStepAnnotations.EMAIL_SUBJECT.name()), String.class));
             }
             if(annotations.containsKey(JobStepAnnotations.EMAIL_BODY.name()))
             {
-                email_body = AnnotationUtil.parseValue(JobStepAnnotations.EMAIL_BODY, annotations.get(JobStepAnnotations.EMAIL_BODY.name()), String.class);
+                email_body = EmailTemplate.compile(AnnotationUtil.parseValue(JobStepAnnotations.EMAIL_BODY, annotations.get(JobStepAnnotations.EMAIL_BODY.name()), String.class));
+            }
+            if(annotations.containsKey(JobStepAnnotations.EMAIL_DIGEST.name()))
+            {
+                email_digest = AnnotationUtil.parseValue(JobStepAnnotations.EMAIL_DIGEST, annotations.get(JobStepAnnotations.EMAIL_DIGEST.name()), Boolean.class);
+            }
+            if(annotations.containsKey(JobStepAnnotations.NOTIFY_VIA.name()))
+            {
+                notify_via = AnnotationUtil.parseValue(JobStepAnnotations.NOTIFY_VIA, annotations.get(JobStepAnnotations.NOTIFY_VIA.name()), String.class).split(";");
+            }
+            if(annotations.containsKey(JobStepAnnotations.MUTEX.name()))
+            {
+                mutex_keys = AnnotationUtil.parseValue(JobStepAnnotations.MUTEX, annotations.get(JobStepAnnotations.MUTEX.name()), String.class).split(";");
             }
         }
         catch (Exception e)
@@ -415,6 +556,54 @@ public class JobStep implements CancellableRunnable
         Config.INSTANCE.logger.debug("JobStep instantiation complete.");
     }
 
+    /**
+     * Reads the normal output of a finished process, followed by its error output.
+     *
+     * @param process
+     * @return
+     * @throws IOException
+     */
+    static String readOutput(final Process process) throws IOException
+    {
+        final BufferedReader buffered_reader_out = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        final BufferedReader buffered_reader_error = new BufferedReader(new InputStreamReader(process.getErrorStream()));
+        final StringBuilder string_builder = new StringBuilder();
+        String line;
+        // Get normal output.
+        while ((line = buffered_reader_out.readLine()) != null)
+        {
+            string_builder.append(line);
+            string_builder.append(System.getProperty("line.separator"));
+        }
+        // Get error output.
+        while ((line = buffered_reader_error.readLine()) != null)
+        {
+            string_builder.append(line);
+            string_builder.append(System.getProperty("line.separator"));
+        }
+        return string_builder.toString();
+    }
+
+    /**
+     * Returns a connection to run the step on.
+     * Read only steps go to the replicas unless the step sets its own host.
+     *
+     * @param user
+     * @param password
+     * @return
+     * @throws SQLException
+     */
+    private Connection getStepConnection(final String user, final String password) throws SQLException
+    {
+        if (read_only && database_host == null && Database.INSTANCE.hasReplicas())
+        {
+            return Database.INSTANCE.getReplicaConnection(getDatabase(), user, password);
+        }
+        final Connection connection = Database.INSTANCE.getConnection(getHost(), getDatabase(), user, password);
+        connection.setReadOnly(read_only);
+        return connection;
+    }
+
     private String getHost()
     {
         if(database_host != null)
@@ -486,6 +675,36 @@ public class JobStep implements CancellableRunnable
 
     }
 
+    /**
+     * Marks the step aborted when it was killed before it started.
+     * Nothing is acquired for a step until it runs, the job releases its mutex keys.
+     */
+    @Override
+    public void cancelledBeforeStart()
+    {
+        step_status = StepStatus.ABORTED;
+    }
+
+    /**
+     * Gets the id of the JobStep.
+     *
+     * @return
+     */
+    public int getStepId()
+    {
+        return step_id;
+    }
+
+    /**
+     * Gets the name of the JobStep.
+     *
+     * @return
+     */
+    public String getStepName()
+    {
+        return step_name;
+    }
+
     /**
      * Gets the StepStatus of the JobStep.
      *
@@ -506,6 +725,15 @@ public class JobStep implements CancellableRunnable
         return on_error;
     }
 
+    /**
+     * Returns the mutex keys which must be held while the step runs, or null if there are none.
+     * @return
+     */
+    public String[] getMutexKeys()
+    {
+        return this.mutex_keys;
+    }
+
     /**
      * Returns if the job can run in parallel with the previous step.
      * @return
@@ -646,10 +874,14 @@ public class JobStep implements CancellableRunnable
         DATABASE_LOGIN(String.class),
         DATABASE_PASSWORD(String.class),
         DATABASE_AUTH_QUERY(String.class),
+        READ_ONLY(Boolean.class),
         EMAIL_ON(String.class),
         EMAIL_SUBJECT(String.class),
         EMAIL_BODY(String.class),
-        EMAIL_TO(String.class);
+        EMAIL_TO(String.class),
+        EMAIL_DIGEST(Boolean.class),
+        NOTIFY_VIA(String.class),
+        MUTEX(String.class);
 
         final Class<?> annotation_value_type;
 
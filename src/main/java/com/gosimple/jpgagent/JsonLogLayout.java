@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.ThrowableProxyUtil;
+import ch.qos.logback.core.CoreConstants;
+import ch.qos.logback.core.LayoutBase;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Logback layout writing each event as one line of JSON, with the MDC (job_id, step_id) as fields.
+ */
+public class JsonLogLayout extends LayoutBase<ILoggingEvent>
+{
+    private static final ThreadLocal<SimpleDateFormat> date_format = new ThreadLocal<SimpleDateFormat>()
+    {
+        @Override
+        protected SimpleDateFormat initialValue()
+        {
+            final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            return format;
+        }
+    };
+
+    @Override
+    public String doLayout(final ILoggingEvent event)
+    {
+        final StringBuilder json = new StringBuilder(256);
+        json.append("{\"time\":");
+        Notification.appendJsonString(json, date_format.get().format(new Date(event.getTimeStamp())));
+        json.append(",\"level\":");
+        Notification.appendJsonString(json, event.getLevel().toString());
+        json.append(",\"thread\":");
+        Notification.appendJsonString(json, event.getThreadName());
+        json.append(",\"logger\":");
+        Notification.appendJsonString(json, event.getLoggerName());
+        json.append(",\"message\":");
+        Notification.appendJsonString(json, event.getFormattedMessage());
+        final Map<String, String> mdc = event.getMDCPropertyMap();
+        if (mdc != null)
+        {
+            for (final Map.Entry<String, String> entry : mdc.entrySet())
+            {
+                json.append(',');
+                Notification.appendJsonString(json, entry.getKey());
+                json.append(':');
+                Notification.appendJsonString(json, entry.getValue());
+            }
+        }
+        final IThrowableProxy throwable = event.getThrowableProxy();
+        if (throwable != null)
+        {
+            json.append(",\"exception\":");
+            Notification.appendJsonString(json, ThrowableProxyUtil.asString(throwable));
+        }
+        json.append('}').append(CoreConstants.LINE_SEPARATOR);
+        return json.toString();
+    }
+}
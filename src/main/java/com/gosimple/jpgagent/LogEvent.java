@@ -0,0 +1,412 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * An outcome which needs to be written to the pgAgent log tables.
+ * Events carry everything needed to write them later, so they can be spooled while the database is unreachable
+ * and replayed once it is back.  Durations are measured by the agent for the same reason.
+ */
+public class LogEvent
+{
+    private final EventType event_type;
+    private final int job_id;
+    private final int job_log_id;
+    private final int job_step_id;
+    private final int job_step_log_id;
+    private final int agent_pid;
+    private final String status;
+    private final int result;
+    private final String output;
+    private final long duration;
+    private final long end_time;
+    private final long scheduled_time;
+    private final long start_lag;
+    private final long queue_wait;
+    // Set once the run stats table is known to exist
+    private static volatile boolean run_stats_table_created = false;
+
+    private LogEvent(final EventType event_type, final int job_id, final int job_log_id, final int job_step_id, final int job_step_log_id, final int agent_pid, final String status, final int result, final String output, final long duration, final long end_time, final long scheduled_time, final long start_lag, final long queue_wait)
+    {
+        this.event_type = event_type;
+        this.job_id = job_id;
+        this.job_log_id = job_log_id;
+        this.job_step_id = job_step_id;
+        this.job_step_log_id = job_step_log_id;
+        this.agent_pid = agent_pid;
+        this.status = status;
+        this.result = result;
+        this.output = output;
+        this.duration = duration;
+        this.end_time = end_time;
+        this.scheduled_time = scheduled_time;
+        this.start_lag = start_lag;
+        this.queue_wait = queue_wait;
+    }
+
+    /**
+     * A job finished, records its status in pga_joblog.
+     *
+     * @param job_id
+     * @param job_log_id 0 if the job log couldn't be created when the job started.
+     * @param status
+     * @param duration milliseconds.
+     * @return
+     */
+    public static LogEvent jobLogFinish(final int job_id, final int job_log_id, final String status, final long duration)
+    {
+        return new LogEvent(EventType.JOB_LOG_FINISH, job_id, job_log_id, 0, 0, 0, status, 0, null, duration, System.currentTimeMillis(), 0, 0, 0);
+    }
+
+    /**
+     * A job step finished, records its status, result and output in pga_jobsteplog.
+     *
+     * @param job_id
+     * @param job_log_id
+     * @param job_step_id
+     * @param job_step_log_id 0 if the job step log couldn't be created when the step started.
+     * @param status
+     * @param result
+     * @param output
+     * @param duration milliseconds.
+     * @return
+     */
+    public static LogEvent jobStepLogFinish(final int job_id, final int job_log_id, final int job_step_id, final int job_step_log_id, final String status, final int result, final String output, final long duration)
+    {
+        return new LogEvent(EventType.JOB_STEP_LOG_FINISH, job_id, job_log_id, job_step_id, job_step_log_id, 0, status, result, output, duration, System.currentTimeMillis(), 0, 0, 0);
+    }
+
+    /**
+     * A job finished, releases the agent's claim on it so its next run is scheduled.
+     *
+     * @param job_id
+     * @param agent_pid pid the job was claimed with, the release is skipped if the job was claimed again since.
+     *                  A job moved to this agent's current pid along with its main connection is released too.
+     * @return
+     */
+    public static LogEvent jobRelease(final int job_id, final int agent_pid)
+    {
+        return new LogEvent(EventType.JOB_RELEASE, job_id, 0, 0, 0, agent_pid, null, 0, null, 0, System.currentTimeMillis(), 0, 0, 0);
+    }
+
+    /**
+     * A job finished, records its scheduling lag in pgagent.jpgagent_run_stats.
+     *
+     * @param job_id
+     * @param job_log_id
+     * @param scheduled_time jobnextrun when the job was claimed, in ms since the epoch.
+     * @param start_lag      milliseconds between the scheduled time and the job starting.
+     * @param queue_wait     milliseconds between the job being claimed and starting.
+     * @param end_to_end     milliseconds between the scheduled time and the job finishing.
+     * @return
+     */
+    public static LogEvent jobRunStats(final int job_id, final int job_log_id, final long scheduled_time, final long start_lag, final long queue_wait, final long end_to_end)
+    {
+        return new LogEvent(EventType.JOB_RUN_STATS, job_id, job_log_id, 0, 0, 0, null, 0, null, end_to_end, System.currentTimeMillis(), scheduled_time, start_lag, queue_wait);
+    }
+
+    /**
+     * Writes the event to the database.
+     *
+     * @param connection
+     * @throws SQLException
+     */
+    public void apply(final Connection connection) throws SQLException
+    {
+        switch (event_type)
+        {
+            case JOB_LOG_FINISH:
+            {
+                if (job_log_id != 0)
+                {
+                    final String update_log_sql =
+                            "UPDATE pgagent.pga_joblog SET jlgstatus = ?, jlgduration = ? * interval '1 millisecond' " +
+                                    "WHERE jlgid = ?;";
+                    try (final PreparedStatement statement = connection.prepareStatement(update_log_sql))
+                    {
+                        statement.setString(1, status);
+                        statement.setLong(2, duration);
+                        statement.setInt(3, job_log_id);
+                        statement.execute();
+                    }
+                }
+                else
+                {
+                    final String insert_log_sql =
+                            "INSERT INTO pgagent.pga_joblog (jlgjobid, jlgstatus, jlgstart, jlgduration) " +
+                                    "VALUES (?, ?, to_timestamp(? / 1000.0) - ? * interval '1 millisecond', ? * interval '1 millisecond');";
+                    try (final PreparedStatement statement = connection.prepareStatement(insert_log_sql))
+                    {
+                        statement.setInt(1, job_id);
+                        statement.setString(2, status);
+                        statement.setLong(3, end_time);
+                        statement.setLong(4, duration);
+                        statement.setLong(5, duration);
+                        statement.execute();
+                    }
+                }
+                break;
+            }
+            case JOB_STEP_LOG_FINISH:
+            {
+                if (job_step_log_id != 0)
+                {
+                    final String update_log_sql =
+                            "UPDATE pgagent.pga_jobsteplog " +
+                                    "SET jslduration = ? * interval '1 millisecond', " +
+                                    "jslstatus = ?, " +
+                                    "jslresult = ?, " +
+                                    "jsloutput = ? " +
+                                    "WHERE jslid = ?;";
+                    try (final PreparedStatement statement = connection.prepareStatement(update_log_sql))
+                    {
+                        statement.setLong(1, duration);
+                        statement.setString(2, status);
+                        statement.setInt(3, result);
+                        statement.setString(4, output);
+                        statement.setInt(5, job_step_log_id);
+                        statement.execute();
+                    }
+                }
+                else if (job_log_id != 0)
+                {
+                    final String insert_log_sql =
+                            "INSERT INTO pgagent.pga_jobsteplog (jsljlgid, jsljstid, jslstatus, jslresult, jsloutput, jslstart, jslduration) " +
+                                    "VALUES (?, ?, ?, ?, ?, to_timestamp(? / 1000.0) - ? * interval '1 millisecond', ? * interval '1 millisecond');";
+                    try (final PreparedStatement statement = connection.prepareStatement(insert_log_sql))
+                    {
+                        statement.setInt(1, job_log_id);
+                        statement.setInt(2, job_step_id);
+                        statement.setString(3, status);
+                        statement.setInt(4, result);
+                        statement.setString(5, output);
+                        statement.setLong(6, end_time);
+                        statement.setLong(7, duration);
+                        statement.setLong(8, duration);
+                        statement.execute();
+                    }
+                }
+                else
+                {
+                    Config.INSTANCE.logger.warn("The outcome of job_step_id: {} can't be logged, its job has no job log.", job_step_id);
+                }
+                break;
+            }
+            case JOB_RELEASE:
+            {
+                final String update_job_sql =
+                        "UPDATE pgagent.pga_job SET jobagentid=NULL, jobnextrun=NULL " +
+                                "WHERE jobid = ? " +
+                                "AND jobagentid IN (?, pg_backend_pid());";
+                try (final PreparedStatement statement = connection.prepareStatement(update_job_sql))
+                {
+                    statement.setInt(1, job_id);
+                    statement.setInt(2, agent_pid);
+                    statement.execute();
+                }
+                break;
+            }
+            case JOB_RUN_STATS:
+            {
+                if (job_log_id == 0)
+                {
+                    Config.INSTANCE.logger.warn("The run stats of job_id: {} can't be recorded, it has no job log.", job_id);
+                    break;
+                }
+                createRunStatsTable(connection);
+                final String insert_stats_sql =
+                        "INSERT INTO pgagent.jpgagent_run_stats (jrsjlgid, jrsjobid, jrsscheduled, jrsstartlag, jrsqueuewait, jrsendtoend) " +
+                                "SELECT ?, ?, to_timestamp(? / 1000.0), ? * interval '1 millisecond', ? * interval '1 millisecond', ? * interval '1 millisecond' " +
+                                // A replayed event may already be recorded.
+                                "WHERE NOT EXISTS (SELECT 1 FROM pgagent.jpgagent_run_stats WHERE jrsjlgid = ?);";
+                try (final PreparedStatement statement = connection.prepareStatement(insert_stats_sql))
+                {
+                    statement.setInt(1, job_log_id);
+                    statement.setInt(2, job_id);
+                    statement.setLong(3, scheduled_time);
+                    statement.setLong(4, start_lag);
+                    statement.setLong(5, queue_wait);
+                    statement.setLong(6, duration);
+                    statement.setInt(7, job_log_id);
+                    statement.execute();
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Creates the run stats table if needed.  Rows are removed with their job log.
+     *
+     * @param connection
+     * @throws SQLException
+     */
+    private static void createRunStatsTable(final Connection connection) throws SQLException
+    {
+        if (run_stats_table_created)
+        {
+            return;
+        }
+        final String create_table_sql =
+                "CREATE TABLE IF NOT EXISTS pgagent.jpgagent_run_stats (" +
+                        "jrsjlgid INTEGER NOT NULL PRIMARY KEY REFERENCES pgagent.pga_joblog (jlgid) ON DELETE CASCADE, " +
+                        "jrsjobid INTEGER NOT NULL, " +
+                        "jrsscheduled TIMESTAMPTZ NOT NULL, " +
+                        "jrsstartlag INTERVAL NOT NULL, " +
+                        "jrsqueuewait INTERVAL NOT NULL, " +
+                        "jrsendtoend INTERVAL NOT NULL);";
+        try (final Statement statement = connection.createStatement())
+        {
+            statement.execute(create_table_sql);
+        }
+        run_stats_table_created = true;
+    }
+
+    /**
+     * Serializes the event for the spool.
+     *
+     * @return
+     * @throws IOException
+     */
+    public byte[] toBytes() throws IOException
+    {
+        final ByteArrayOutputStream byte_stream = new ByteArrayOutputStream();
+        try (final DataOutputStream data_stream = new DataOutputStream(byte_stream))
+        {
+            data_stream.writeByte(event_type.ordinal());
+            data_stream.writeInt(job_id);
+            data_stream.writeInt(job_log_id);
+            data_stream.writeInt(job_step_id);
+            data_stream.writeInt(job_step_log_id);
+            data_stream.writeInt(agent_pid);
+            writeString(data_stream, status);
+            data_stream.writeInt(result);
+            writeString(data_stream, output);
+            data_stream.writeLong(duration);
+            data_stream.writeLong(end_time);
+            data_stream.writeLong(scheduled_time);
+            data_stream.writeLong(start_lag);
+            data_stream.writeLong(queue_wait);
+        }
+        return byte_stream.toByteArray();
+    }
+
+    /**
+     * Deserializes an event from the spool.
+     *
+     * @param bytes
+     * @return
+     * @throws IOException
+     */
+    public static LogEvent fromBytes(final byte[] bytes) throws IOException
+    {
+        try (final DataInputStream data_stream = new DataInputStream(new ByteArrayInputStream(bytes)))
+        {
+            final EventType event_type = EventType.values()[data_stream.readByte()];
+            final int job_id = data_stream.readInt();
+            final int job_log_id = data_stream.readInt();
+            final int job_step_id = data_stream.readInt();
+            final int job_step_log_id = data_stream.readInt();
+            final int agent_pid = data_stream.readInt();
+            final String status = readString(data_stream);
+            final int result = data_stream.readInt();
+            final String output = readString(data_stream);
+            final long duration = data_stream.readLong();
+            final long end_time = data_stream.readLong();
+            final long scheduled_time = data_stream.readLong();
+            final long start_lag = data_stream.readLong();
+            final long queue_wait = data_stream.readLong();
+            return new LogEvent(event_type, job_id, job_log_id, job_step_id, job_step_log_id, agent_pid, status, result, output, duration, end_time, scheduled_time, start_lag, queue_wait);
+        }
+    }
+
+    private static void writeString(final DataOutputStream data_stream, final String string) throws IOException
+    {
+        if (string == null)
+        {
+            data_stream.writeInt(-1);
+            return;
+        }
+        final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        data_stream.writeInt(bytes.length);
+        data_stream.write(bytes);
+    }
+
+    private static String readString(final DataInputStream data_stream) throws IOException
+    {
+        final int length = data_stream.readInt();
+        if (length < 0)
+        {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        data_stream.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public int getJobId()
+    {
+        return job_id;
+    }
+
+    /**
+     * @return 0 unless the event is about a job step.
+     */
+    public int getJobStepId()
+    {
+        return job_step_id;
+    }
+
+    /**
+     * @return null unless the event records an outcome.
+     */
+    public String getStatus()
+    {
+        return status;
+    }
+
+    @Override
+    public String toString()
+    {
+        return event_type + " job_id: " + job_id + " job_log_id: " + job_log_id + " job_step_id: " + job_step_id + " job_step_log_id: " + job_step_log_id;
+    }
+
+    protected enum EventType
+    {
+        JOB_LOG_FINISH,
+        JOB_STEP_LOG_FINISH,
+        JOB_RELEASE,
+        JOB_RUN_STATS
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prunes old rows from pga_joblog, and with them pga_jobsteplog, which pgAgent never does on its own.
+ * Each job keeps its logs according to the LOG_RETENTION_AGE and LOG_RETENTION_COUNT annotations, or the
+ * configured defaults.  Logs are deleted oldest first in small batches with a pause in between, to keep locks
+ * and WAL volume down.
+ *
+ * Only the maintenance leader prunes.  The last job processed is stored in pgagent.jpgagent_maintenance after
+ * each batch of jobs, so a pass resumes where it left off after a restart or a change of leader.
+ */
+public enum LogRetention
+{
+    INSTANCE;
+
+    private static final String task_name = "log_retention";
+    // Number of jobs processed between saves of the cursor
+    private static final int job_batch_size = 100;
+    // Matches the description of any job with a LOG_RETENTION_AGE or LOG_RETENTION_COUNT annotation
+    private static final String annotation_condition = "position('@LOG_RETENTION_' in jobdesc) > 0";
+
+    /**
+     * Starts pruning logs every maintenance interval.
+     */
+    public void start()
+    {
+        ThreadFactory.INSTANCE.scheduleTask(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    if (Maintenance.INSTANCE.isLeader())
+                    {
+                        prune();
+                    }
+                }
+                catch (final Exception e)
+                {
+                    Config.INSTANCE.logger.error("An error occurred pruning logs.");
+                    Config.INSTANCE.logger.error(e.getMessage());
+                }
+            }
+        }, Config.INSTANCE.maintenance_interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs a pass over all jobs, starting after the last job processed.
+     * Nothing is done, and no table is created, unless a default or a job annotation enables retention.
+     *
+     * @throws Exception
+     */
+    private void prune() throws Exception
+    {
+        final boolean has_default = Config.INSTANCE.log_retention_age > 0 || Config.INSTANCE.log_retention_count > 0;
+        if (!has_default && !hasRetentionAnnotation())
+        {
+            return;
+        }
+        createProgressTable();
+        int cursor = getCursor();
+        Config.INSTANCE.logger.debug("Pruning logs, starting after job_id: {}.", cursor);
+
+        // Without a default, only jobs with a retention annotation have logs to prune.
+        final String job_sql =
+                "SELECT jobid " +
+                        ", jobdesc " +
+                        "FROM pgagent.pga_job " +
+                        "WHERE jobid > ? " +
+                        (has_default ? "" : "AND " + annotation_condition + " ") +
+                        "ORDER BY jobid " +
+                        "LIMIT ?;";
+
+        long deleted = 0;
+        while (true)
+        {
+            final Map<Integer, String> jobs = new LinkedHashMap<>();
+            try (final PreparedStatement statement = Database.INSTANCE.getMainConnection().prepareStatement(job_sql))
+            {
+                statement.setInt(1, cursor);
+                statement.setInt(2, job_batch_size);
+                try (final ResultSet result_set = statement.executeQuery())
+                {
+                    while (result_set.next())
+                    {
+                        jobs.put(result_set.getInt("jobid"), result_set.getString("jobdesc"));
+                    }
+                }
+            }
+            if (jobs.isEmpty())
+            {
+                break;
+            }
+
+            for (Map.Entry<Integer, String> job : jobs.entrySet())
+            {
+                if (!Maintenance.INSTANCE.isLeader())
+                {
+                    // The next leader repeats at most this batch, which only finds nothing left to delete.
+                    Config.INSTANCE.logger.info("No longer the maintenance leader, pruning stopped after job_id: {}.", cursor);
+                    return;
+                }
+                deleted += pruneJob(job.getKey(), AnnotationUtil.parseAnnotations(job.getValue()));
+                cursor = job.getKey();
+            }
+            setCursor(cursor);
+        }
+        // Pass complete, start from the beginning next time.
+        setCursor(0);
+
+        if (deleted > 0)
+        {
+            Config.INSTANCE.logger.info("Pruned {} job log(s).", deleted);
+        }
+    }
+
+    /**
+     * @return true if any job may have a retention annotation.
+     * @throws SQLException
+     */
+    private boolean hasRetentionAnnotation() throws SQLException
+    {
+        final String annotation_sql =
+                "SELECT 1 " +
+                        "FROM pgagent.pga_job " +
+                        "WHERE " + annotation_condition + " " +
+                        "LIMIT 1;";
+
+        try (final Statement statement = Database.INSTANCE.getMainConnection().createStatement();
+             final ResultSet result_set = statement.executeQuery(annotation_sql))
+        {
+            return result_set.next();
+        }
+    }
+
+    /**
+     * Deletes the logs of a job which are past its retention policy.
+     * As with the defaults, an annotation of 0 (or less) disables that limit for the job.
+     *
+     * @param job_id
+     * @param annotations
+     * @return number of job logs deleted.
+     * @throws Exception
+     */
+    private long pruneJob(final int job_id, final Map<String, String> annotations) throws Exception
+    {
+        Long retention_age = Config.INSTANCE.log_retention_age > 0 ? Config.INSTANCE.log_retention_age : null;
+        Integer retention_count = Config.INSTANCE.log_retention_count > 0 ? Config.INSTANCE.log_retention_count : null;
+        if (annotations.containsKey(Job.JobAnnotations.LOG_RETENTION_AGE.name()))
+        {
+            retention_age = AnnotationUtil.parseValue(Job.JobAnnotations.LOG_RETENTION_AGE, annotations.get(Job.JobAnnotations.LOG_RETENTION_AGE.name()), Long.class);
+            if (retention_age != null && retention_age <= 0)
+            {
+                retention_age = null;
+            }
+        }
+        if (annotations.containsKey(Job.JobAnnotations.LOG_RETENTION_COUNT.name()))
+        {
+            retention_count = AnnotationUtil.parseValue(Job.JobAnnotations.LOG_RETENTION_COUNT, annotations.get(Job.JobAnnotations.LOG_RETENTION_COUNT.name()), Integer.class);
+            if (retention_count != null && retention_count <= 0)
+            {
+                retention_count = null;
+            }
+        }
+        if (retention_age == null && retention_count == null)
+        {
+            return 0;
+        }
+
+        // Job step logs are removed along with their job log by the foreign key cascade.
+        final String delete_log_sql =
+                "DELETE FROM pgagent.pga_joblog " +
+                        "WHERE jlgid IN (" +
+                        "SELECT jlgid " +
+                        "FROM pgagent.pga_joblog " +
+                        "WHERE jlgjobid = ? " +
+                        "AND jlgstatus <> 'r' " +
+                        "AND (jlgstart < now() - ? * interval '1 millisecond' " +
+                        "OR jlgid <= (" +
+                        "SELECT jlgid " +
+                        "FROM pgagent.pga_joblog " +
+                        "WHERE jlgjobid = ? " +
+                        "ORDER BY jlgid DESC " +
+                        "OFFSET ? " +
+                        "LIMIT 1)) " +
+                        "ORDER BY jlgid " +
+                        "LIMIT ?);";
+
+        final int batch_size = Math.max(1, Config.INSTANCE.log_retention_batch_size);
+        long deleted = 0;
+        try (final PreparedStatement statement = Database.INSTANCE.getMainConnection().prepareStatement(delete_log_sql))
+        {
+            statement.setInt(1, job_id);
+            if (retention_age == null)
+            {
+                statement.setNull(2, Types.BIGINT);
+            }
+            else
+            {
+                statement.setLong(2, retention_age);
+            }
+            statement.setInt(3, job_id);
+            // OFFSET NULL is treated as no offset, so skip past every row instead when there is no count limit.
+            statement.setInt(4, retention_count == null ? Integer.MAX_VALUE : retention_count);
+            statement.setInt(5, batch_size);
+
+            int batch_deleted;
+            do
+            {
+                batch_deleted = statement.executeUpdate();
+                deleted += batch_deleted;
+                if (batch_deleted == batch_size)
+                {
+                    Thread.sleep(Config.INSTANCE.log_retention_pause);
+                }
+            }
+            while (batch_deleted == batch_size);
+        }
+
+        if (deleted > 0)
+        {
+            Config.INSTANCE.logger.debug("Pruned {} job log(s) for job_id: {}.", deleted, job_id);
+        }
+        return deleted;
+    }
+
+    private void createProgressTable() throws SQLException
+    {
+        final String create_table_sql =
+                "CREATE TABLE IF NOT EXISTS pgagent.jpgagent_maintenance (" +
+                        "jmttask TEXT NOT NULL PRIMARY KEY, " +
+                        "jmtcursor INTEGER NOT NULL, " +
+                        "jmtupdated TIMESTAMPTZ NOT NULL DEFAULT now());";
+        final String insert_task_sql =
+                "INSERT INTO pgagent.jpgagent_maintenance (jmttask, jmtcursor) SELECT ?, 0 " +
+                        "WHERE NOT EXISTS (" +
+                        "SELECT 1 " +
+                        "FROM pgagent.jpgagent_maintenance " +
+                        "WHERE jmttask = ?);";
+
+        try (final Statement statement = Database.INSTANCE.getMainConnection().createStatement();
+             final PreparedStatement insert_task_statement = Database.INSTANCE.getMainConnection().prepareStatement(insert_task_sql))
+        {
+            statement.execute(create_table_sql);
+            insert_task_statement.setString(1, task_name);
+            insert_task_statement.setString(2, task_name);
+            insert_task_statement.execute();
+        }
+    }
+
+    private int getCursor() throws SQLException
+    {
+        final String cursor_sql =
+                "SELECT jmtcursor " +
+                        "FROM pgagent.jpgagent_maintenance " +
+                        "WHERE jmttask = ?;";
+
+        try (final PreparedStatement statement = Database.INSTANCE.getMainConnection().prepareStatement(cursor_sql))
+        {
+            statement.setString(1, task_name);
+            try (final ResultSet result_set = statement.executeQuery())
+            {
+                return result_set.next() ? result_set.getInt("jmtcursor") : 0;
+            }
+        }
+    }
+
+    private void setCursor(final int cursor) throws SQLException
+    {
+        final String cursor_sql =
+                "UPDATE pgagent.jpgagent_maintenance " +
+                        "SET jmtcursor = ?, jmtupdated = now() " +
+                        "WHERE jmttask = ?;";
+
+        try (final PreparedStatement statement = Database.INSTANCE.getMainConnection().prepareStatement(cursor_sql))
+        {
+            statement.setInt(1, cursor);
+            statement.setString(2, task_name);
+            statement.execute();
+        }
+    }
+}
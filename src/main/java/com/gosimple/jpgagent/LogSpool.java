@@ -0,0 +1,362 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Durable, ordered spool for job and job step outcomes.
+ * Events are appended to a memory-mapped journal file and written to the database by a single writer thread, so
+ * running jobs never block on the logging connection.  While the database is unreachable events accumulate in the
+ * journal, and they are replayed in order once it is back, including any left over by a previous run of the agent.
+ * <p>
+ * Journal layout: the write position and applied position (longs), followed by length prefixed events.
+ */
+public enum LogSpool
+{
+    INSTANCE;
+
+    private static final int header_size = 16;
+
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    // End of the last event appended
+    private int write_position;
+    // End of the last event written to the database
+    private int applied_position;
+    private volatile boolean started = false;
+
+    /**
+     * Opens the journal and starts the writer thread.
+     * If the journal can't be opened, or another agent holds its lock, events are written to the database directly.
+     */
+    public synchronized void start()
+    {
+        final File spool_file = Config.INSTANCE.spool_file != null
+                ? new File(Config.INSTANCE.spool_file)
+                : new File(System.getProperty("java.io.tmpdir"), getDefaultFileName());
+        try
+        {
+            channel = new RandomAccessFile(spool_file, "rw").getChannel();
+            final FileLock lock;
+            try
+            {
+                lock = channel.tryLock();
+            }
+            catch (final OverlappingFileLockException e)
+            {
+                channel.close();
+                throw new IOException("Log spool is locked by this process.");
+            }
+            if (lock == null)
+            {
+                channel.close();
+                throw new IOException("Log spool is locked by another agent, use --spool-file to give each agent its own.");
+            }
+            // The lock is held for the life of the agent, and released by the OS when it exits.
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), Math.max(header_size, Config.INSTANCE.spool_size)));
+            write_position = (int) buffer.getLong(0);
+            applied_position = (int) buffer.getLong(8);
+            if (write_position < header_size || write_position > buffer.capacity() || applied_position < header_size || applied_position > write_position)
+            {
+                if (write_position != 0)
+                {
+                    Config.INSTANCE.logger.error("Log spool {} is corrupt, discarding it.", spool_file);
+                }
+                write_position = header_size;
+                applied_position = header_size;
+                writeHeader();
+            }
+            else if (applied_position < write_position)
+            {
+                Config.INSTANCE.logger.info("Replaying {} bytes of spooled log events from {}.", write_position - applied_position, spool_file);
+            }
+        }
+        catch (final IOException e)
+        {
+            Config.INSTANCE.logger.error("Unable to open log spool {}, log events will not be spooled.", spool_file);
+            Config.INSTANCE.logger.error(e.getMessage());
+            return;
+        }
+
+        final Thread writer_thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                writeEvents();
+            }
+        }, "LogSpool");
+        writer_thread.setDaemon(true);
+        writer_thread.start();
+        started = true;
+    }
+
+    /**
+     * Appends an event to the journal, to be written to the database in order.
+     * Never blocks on the database.
+     *
+     * @param event
+     */
+    public void submit(final LogEvent event)
+    {
+        if (!started)
+        {
+            try
+            {
+                apply(event, Database.INSTANCE.getMainConnection());
+            }
+            catch (final SQLException e)
+            {
+                Config.INSTANCE.logger.error("Unable to write log event: {}", event);
+                Config.INSTANCE.logger.error(e.getMessage());
+            }
+            return;
+        }
+
+        final byte[] bytes;
+        try
+        {
+            bytes = event.toBytes();
+        }
+        catch (final IOException e)
+        {
+            Config.INSTANCE.logger.error("Unable to serialize log event: {}", event);
+            Config.INSTANCE.logger.error(e.getMessage());
+            return;
+        }
+
+        synchronized (this)
+        {
+            try
+            {
+                ensureCapacity(4 + bytes.length);
+            }
+            catch (final IOException e)
+            {
+                Config.INSTANCE.logger.error("Unable to grow log spool, log event lost: {}", event);
+                Config.INSTANCE.logger.error(e.getMessage());
+                return;
+            }
+            final ByteBuffer record = buffer.duplicate();
+            record.position(write_position);
+            record.putInt(bytes.length);
+            record.put(bytes);
+            // The event only becomes visible once the header points past it, so it must be on disk first.
+            buffer.force();
+            write_position = record.position();
+            writeHeader();
+            notifyAll();
+        }
+    }
+
+    /**
+     * Waits until all spooled events are written to the database.
+     *
+     * @param timeout milliseconds.
+     * @return true if the spool is empty.
+     * @throws InterruptedException
+     */
+    public synchronized boolean flush(final long timeout) throws InterruptedException
+    {
+        final long deadline = System.currentTimeMillis() + timeout;
+        while (started && applied_position < write_position)
+        {
+            final long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0)
+            {
+                return false;
+            }
+            wait(wait);
+        }
+        return true;
+    }
+
+    /**
+     * @return bytes of events not yet written to the database.
+     */
+    public synchronized int getPendingBytes()
+    {
+        return write_position - applied_position;
+    }
+
+    /**
+     * Writer thread, writes events to the database in the order they were appended.
+     */
+    private void writeEvents()
+    {
+        while (true)
+        {
+            final int position;
+            final byte[] bytes;
+            try
+            {
+                synchronized (this)
+                {
+                    while (applied_position == write_position)
+                    {
+                        wait();
+                    }
+                    position = applied_position;
+                    final ByteBuffer record = buffer.duplicate();
+                    record.position(position);
+                    bytes = new byte[record.getInt()];
+                    record.get(bytes);
+                }
+
+                try
+                {
+                    applyWithRetry(LogEvent.fromBytes(bytes));
+                }
+                catch (final IOException e)
+                {
+                    Config.INSTANCE.logger.error("Skipping unreadable log event in spool.");
+                    Config.INSTANCE.logger.error(e.getMessage());
+                }
+            }
+            catch (final InterruptedException e)
+            {
+                return;
+            }
+
+            synchronized (this)
+            {
+                applied_position = position + 4 + bytes.length;
+                if (applied_position == write_position)
+                {
+                    // Everything is written, start the journal over.
+                    applied_position = header_size;
+                    write_position = header_size;
+                }
+                writeHeader();
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Writes the event, retrying while the database is unreachable.
+     * An event which fails with anything but a connection error on a connection which was valid is logged and
+     * dropped, so it can't block the events after it.  After a connection error the event is retried on a new
+     * connection.
+     *
+     * @param event
+     * @throws InterruptedException
+     */
+    private void applyWithRetry(final LogEvent event) throws InterruptedException
+    {
+        final Backoff backoff = new Backoff(Config.INSTANCE.reconnect_wait, Config.INSTANCE.connection_retry_interval);
+        while (true)
+        {
+            final Connection connection = Database.INSTANCE.getMainConnection();
+            try
+            {
+                if (connection != null)
+                {
+                    apply(event, connection);
+                    return;
+                }
+            }
+            catch (final SQLException e)
+            {
+                if (!Database.isConnectionError(e) && Database.isValid(connection))
+                {
+                    Config.INSTANCE.logger.error("Unable to write log event, dropping it: {}", event);
+                    Config.INSTANCE.logger.error(e.getMessage());
+                    return;
+                }
+                Config.INSTANCE.logger.debug("Connection lost, retrying log event: {}", event);
+                // Reconnects, the event is retried on the new connection.
+                Database.INSTANCE.checkMainConnection();
+            }
+            Thread.sleep(backoff.nextWait());
+        }
+    }
+
+    private static void apply(final LogEvent event, final Connection connection) throws SQLException
+    {
+        final JfrEvents.LogWriteEvent jfr_event = JfrEvents.available ? new JfrEvents.LogWriteEvent() : null;
+        if (jfr_event != null)
+        {
+            jfr_event.begin();
+        }
+        final long start_nanos = System.nanoTime();
+        event.apply(connection);
+        Metrics.recordSince(Metrics.INSTANCE.log_write_duration, start_nanos);
+        if (jfr_event != null && jfr_event.shouldCommit())
+        {
+            jfr_event.event = event.toString();
+            jfr_event.job_id = event.getJobId();
+            jfr_event.step_id = event.getJobStepId();
+            jfr_event.status = event.getStatus();
+            jfr_event.commit();
+        }
+    }
+
+    /**
+     * Grows the journal if the record doesn't fit.
+     *
+     * @param record_size
+     * @throws IOException
+     */
+    private void ensureCapacity(final int record_size) throws IOException
+    {
+        final long required = (long) write_position + record_size;
+        if (required <= buffer.capacity())
+        {
+            return;
+        }
+        if (required > Integer.MAX_VALUE)
+        {
+            throw new IOException("Log spool is full.");
+        }
+        final long new_size = Math.min(Integer.MAX_VALUE, Math.max(required, (long) buffer.capacity() * 2));
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, new_size);
+    }
+
+    /**
+     * @return the journal file name for the database this agent runs jobs for, so agents for different
+     * databases on one host don't share a journal.
+     */
+    static String getDefaultFileName()
+    {
+        final String instance = Config.INSTANCE.db_host + "-" + Config.INSTANCE.db_port + "-" + Config.INSTANCE.db_database;
+        return "jpgagent-" + instance.replaceAll("[^A-Za-z0-9._-]", "_") + ".spool";
+    }
+
+    private void writeHeader()
+    {
+        buffer.putLong(0, write_position);
+        buffer.putLong(8, applied_position);
+        buffer.force();
+    }
+}
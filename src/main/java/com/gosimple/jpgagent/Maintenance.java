@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cluster wide maintenance, run by a single leader agent.
+ * The leader is whichever agent holds a session level advisory lock on its main connection.  If the leader dies,
+ * its connection and the lock go with it, and the next agent to check takes over.
+ *
+ * The leader releases the jobs of dead agents every heartbeat interval, and repairs job schedules every
+ * maintenance interval.
+ */
+public enum Maintenance
+{
+    INSTANCE;
+
+    // First key of the two key advisory lock functions, kept apart from the mutex namespace.
+    private static final int leader_lock_namespace = 0x6A70676C;
+    // Pid of the main connection which holds the leader lock, or 0 if this agent isn't the leader.
+    private int leader_pid = 0;
+    private long last_maintenance_run = 0;
+
+    /**
+     * Starts checking for leadership and running maintenance.
+     */
+    public void start()
+    {
+        ThreadFactory.INSTANCE.scheduleTask(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                runMaintenance();
+            }
+        }, Config.INSTANCE.heartbeat_interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns if this agent is the leader, trying to become the leader if there is none.
+     *
+     * @return
+     * @throws SQLException
+     */
+    public synchronized boolean isLeader() throws SQLException
+    {
+        final int pid = Database.INSTANCE.getPid();
+        if (leader_pid != 0 && leader_pid == pid)
+        {
+            return true;
+        }
+        if (leader_pid != 0)
+        {
+            // The main connection was reset, so the lock was released along with the old session.
+            Config.INSTANCE.logger.info("Lost maintenance leadership.");
+            leader_pid = 0;
+        }
+
+        final String leader_sql = "SELECT pg_try_advisory_lock(?, 0);";
+        try (final PreparedStatement statement = Database.INSTANCE.getMainConnection().prepareStatement(leader_sql))
+        {
+            statement.setInt(1, leader_lock_namespace);
+            try (final ResultSet result_set = statement.executeQuery())
+            {
+                if (result_set.next() && result_set.getBoolean(1))
+                {
+                    Config.INSTANCE.logger.info("This agent is now the maintenance leader.");
+                    leader_pid = pid;
+                    // Run all maintenance right away on taking over.
+                    last_maintenance_run = 0;
+                }
+            }
+        }
+        return leader_pid != 0;
+    }
+
+    private void runMaintenance()
+    {
+        try
+        {
+            if (!isLeader())
+            {
+                return;
+            }
+
+            Heartbeat.INSTANCE.cleanupDeadAgents();
+
+            if (System.currentTimeMillis() - last_maintenance_run >= Config.INSTANCE.maintenance_interval)
+            {
+                Config.INSTANCE.logger.debug("Running maintenance.");
+                repairSchedules();
+                last_maintenance_run = System.currentTimeMillis();
+            }
+        }
+        catch (final Exception e)
+        {
+            Config.INSTANCE.logger.error("An error occurred running maintenance.");
+            Config.INSTANCE.logger.error(e.getMessage());
+        }
+    }
+
+    /**
+     * Sets the next run of enabled jobs that were left without one, but have an upcoming scheduled run.
+     * The next run is calculated the same way the pga_job trigger does, so jobs with nothing left to run are untouched.
+     *
+     * @throws SQLException
+     */
+    private void repairSchedules() throws SQLException
+    {
+        final String repair_sql =
+                "UPDATE pgagent.pga_job j " +
+                        "SET jobnextrun = n.next_run " +
+                        "FROM (" +
+                        "SELECT s.jscjobid " +
+                        ", MIN(pgagent.pga_next_schedule(s.jscid, s.jscstart, s.jscend, s.jscminutes, s.jschours, s.jscweekdays, s.jscmonthdays, s.jscmonths)) AS next_run " +
+                        "FROM pgagent.pga_schedule s " +
+                        "WHERE s.jscenabled " +
+                        "GROUP BY s.jscjobid) n " +
+                        "WHERE n.jscjobid = j.jobid " +
+                        "AND n.next_run IS NOT NULL " +
+                        "AND j.jobenabled " +
+                        "AND j.jobagentid IS NULL " +
+                        "AND j.jobnextrun IS NULL;";
+
+        try (final Statement statement = Database.INSTANCE.getMainConnection().createStatement())
+        {
+            final int repaired = statement.executeUpdate(repair_sql);
+            if (repaired > 0)
+            {
+                Config.INSTANCE.logger.info("Repaired the schedule of {} job(s).", repaired);
+            }
+        }
+    }
+}
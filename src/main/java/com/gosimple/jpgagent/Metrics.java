@@ -0,0 +1,421 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters, gauges and histograms of the agent's internals, served in the Prometheus text format on
+ * --metrics-port.  Timings are recorded in microseconds (milliseconds for job steps) and exposed in seconds.
+ */
+public enum Metrics
+{
+    INSTANCE;
+
+    private static final double micros_per_second = 1000000.0;
+    private static final double millis_per_second = 1000.0;
+    // Histogram bucket bounds are every other power of two, 1, 4, 16 ... 2^34 of the recorded unit.
+    private static final int max_bucket_exponent = 34;
+
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    public final Histogram claim_duration = histogram("jpgagent_claim_duration_seconds", "Time taken by the query claiming due jobs.", micros_per_second);
+    public final Histogram jobs_claimed = histogram("jpgagent_jobs_claimed", "Jobs claimed per poll cycle.", 1);
+    public final LongAdder jobs_started = counter("jpgagent_jobs_started_total", "Jobs submitted for execution.");
+    public final Histogram connection_duration = histogram("jpgagent_connection_acquire_seconds", "Time taken to open a database connection.", micros_per_second);
+    public final Histogram job_start_lag = histogram("jpgagent_job_start_lag_seconds", "How late jobs started relative to their scheduled time (jobnextrun).", millis_per_second);
+    public final Histogram job_queue_wait = histogram("jpgagent_job_queue_wait_seconds", "Time between jobs being claimed and starting.", millis_per_second);
+    public final Histogram job_end_to_end = histogram("jpgagent_job_end_to_end_seconds", "Time from jobs' scheduled time to their completion.", millis_per_second);
+    public final Histogram log_write_duration = histogram("jpgagent_log_write_seconds", "Time taken to write a job or job step outcome to the database.", micros_per_second);
+
+    private HttpServer server;
+
+    /**
+     * A value read when the metrics are scraped.
+     */
+    public interface Gauge
+    {
+        double get();
+    }
+
+    private static class Family
+    {
+        private final String name;
+        private final String help;
+        private final String type;
+        private final double scale;
+        // Keyed by the rendered labels.
+        private final ConcurrentMap<String, Object> children = new ConcurrentHashMap<>();
+
+        private Family(final String name, final String help, final String type, final double scale)
+        {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.scale = scale;
+        }
+    }
+
+    /**
+     * Registers the gauges read from other components, and serves the metrics if --metrics-port is set.
+     */
+    public synchronized void start()
+    {
+        gauge("jpgagent_executor_queue_depth", "Tasks waiting for a thread in the general thread pool.", new Gauge()
+        {
+            @Override
+            public double get()
+            {
+                return ThreadFactory.INSTANCE.getQueueSize();
+            }
+        });
+        gauge("jpgagent_executor_active_threads", "Threads running a task in the general thread pool.", new Gauge()
+        {
+            @Override
+            public double get()
+            {
+                return ThreadFactory.INSTANCE.getActiveCount();
+            }
+        });
+        gauge("jpgagent_jobs_running", "Jobs running on this agent.", new Gauge()
+        {
+            @Override
+            public double get()
+            {
+                return JobRegistry.INSTANCE.getJobCount();
+            }
+        });
+        gauge("jpgagent_log_spool_pending_bytes", "Bytes in the log spool waiting to be written to the database.", new Gauge()
+        {
+            @Override
+            public double get()
+            {
+                return LogSpool.INSTANCE.getPendingBytes();
+            }
+        });
+        for (final NotificationQueue queue : Notifier.INSTANCE.getQueues())
+        {
+            final String sink_name = queue.getSink().getName();
+            gauge("jpgagent_notifications_queued", "Notifications waiting to be delivered.", new Gauge()
+            {
+                @Override
+                public double get()
+                {
+                    return queue.getQueued();
+                }
+            }, "sink", sink_name);
+            counter("jpgagent_notifications_sent_total", "Notifications delivered.", new Gauge()
+            {
+                @Override
+                public double get()
+                {
+                    return queue.getSent();
+                }
+            }, "sink", sink_name);
+            counter("jpgagent_notifications_failed_total", "Notifications which failed to be delivered.", new Gauge()
+            {
+                @Override
+                public double get()
+                {
+                    return queue.getFailed();
+                }
+            }, "sink", sink_name);
+            counter("jpgagent_notifications_dropped_total", "Notifications dropped because the queue was full.", new Gauge()
+            {
+                @Override
+                public double get()
+                {
+                    return queue.getDropped();
+                }
+            }, "sink", sink_name);
+        }
+
+        if (Config.INSTANCE.metrics_port <= 0 || server != null)
+        {
+            return;
+        }
+        try
+        {
+            server = HttpServer.create(new InetSocketAddress(Config.INSTANCE.metrics_bind, Config.INSTANCE.metrics_port), 0);
+            server.createContext("/metrics", new HttpHandler()
+            {
+                @Override
+                public void handle(final HttpExchange exchange) throws IOException
+                {
+                    final byte[] body = render().getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (final OutputStream stream = exchange.getResponseBody())
+                    {
+                        stream.write(body);
+                    }
+                }
+            });
+            server.setExecutor(Executors.newSingleThreadExecutor(new java.util.concurrent.ThreadFactory()
+            {
+                @Override
+                public Thread newThread(final Runnable r)
+                {
+                    final Thread thread = new Thread(r, "Metrics");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }));
+            server.start();
+            Config.INSTANCE.logger.info("Serving metrics on {}:{}.", Config.INSTANCE.metrics_bind, Config.INSTANCE.metrics_port);
+        }
+        catch (final IOException e)
+        {
+            Config.INSTANCE.logger.error("Unable to serve metrics on {}:{}.", Config.INSTANCE.metrics_bind, Config.INSTANCE.metrics_port);
+            Config.INSTANCE.logger.error(e.getMessage());
+        }
+    }
+
+    /**
+     * Records the duration of a job step by type and status.
+     *
+     * @param step_type
+     * @param step_status
+     * @param duration in ms.
+     */
+    public void recordStepDuration(final JobStep.StepType step_type, final JobStep.StepStatus step_status, final long duration)
+    {
+        histogram("jpgagent_step_duration_seconds", "Job step duration by type and status.", millis_per_second,
+                "type", step_type.name(), "status", step_status.name()).record(duration);
+    }
+
+    /**
+     * Records the microseconds elapsed since start_nanos.
+     *
+     * @param histogram
+     * @param start_nanos from System.nanoTime()
+     */
+    public static void recordSince(final Histogram histogram, final long start_nanos)
+    {
+        histogram.record((System.nanoTime() - start_nanos) / 1000);
+    }
+
+    /**
+     * Returns the histogram with the given name and labels, creating it if needed.
+     *
+     * @param name
+     * @param help
+     * @param scale  recorded values are divided by when exposed.
+     * @param labels alternating label names and values.
+     * @return
+     */
+    public Histogram histogram(final String name, final String help, final double scale, final String... labels)
+    {
+        return (Histogram) getChild(name, help, "histogram", scale, labels, null);
+    }
+
+    /**
+     * Returns the counter with the given name and labels, creating it if needed.
+     *
+     * @param name
+     * @param help
+     * @param labels alternating label names and values.
+     * @return
+     */
+    public LongAdder counter(final String name, final String help, final String... labels)
+    {
+        return (LongAdder) getChild(name, help, "counter", 1, labels, null);
+    }
+
+    /**
+     * Registers a counter whose value is kept elsewhere, and read when scraped.
+     *
+     * @param name
+     * @param help
+     * @param counter
+     * @param labels  alternating label names and values.
+     */
+    public void counter(final String name, final String help, final Gauge counter, final String... labels)
+    {
+        getChild(name, help, "counter", 1, labels, counter);
+    }
+
+    /**
+     * Registers a gauge, read when scraped.
+     *
+     * @param name
+     * @param help
+     * @param gauge
+     * @param labels alternating label names and values.
+     */
+    public void gauge(final String name, final String help, final Gauge gauge, final String... labels)
+    {
+        getChild(name, help, "gauge", 1, labels, gauge);
+    }
+
+    private Object getChild(final String name, final String help, final String type, final double scale, final String[] labels, final Gauge gauge)
+    {
+        Family family;
+        synchronized (families)
+        {
+            family = families.get(name);
+            if (family == null)
+            {
+                family = new Family(name, help, type, scale);
+                families.put(name, family);
+            }
+        }
+        final String label_string = formatLabels(labels);
+        if (gauge != null)
+        {
+            family.children.put(label_string, gauge);
+            return gauge;
+        }
+        Object child = family.children.get(label_string);
+        if (child == null)
+        {
+            final Object new_child = "histogram".equals(type) ? new Histogram() : new LongAdder();
+            child = family.children.putIfAbsent(label_string, new_child);
+            if (child == null)
+            {
+                child = new_child;
+            }
+        }
+        return child;
+    }
+
+    /**
+     * Renders all metrics in the Prometheus text exposition format.
+     *
+     * @return
+     */
+    public String render()
+    {
+        final StringBuilder builder = new StringBuilder();
+        final Family[] snapshot;
+        synchronized (families)
+        {
+            snapshot = families.values().toArray(new Family[0]);
+        }
+        for (final Family family : snapshot)
+        {
+            builder.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            builder.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            for (final Map.Entry<String, Object> child : family.children.entrySet())
+            {
+                final String labels = child.getKey();
+                final Object value = child.getValue();
+                if (value instanceof Histogram)
+                {
+                    final Histogram histogram = (Histogram) value;
+                    final long count = histogram.getCount();
+                    for (int exponent = 0; exponent <= max_bucket_exponent; exponent += 2)
+                    {
+                        // le is inclusive, and values are whole numbers, so values below 2^exponent are those <= 2^exponent - 1.
+                        final String le = formatValue(((1L << exponent) - 1) / family.scale);
+                        appendSample(builder, family.name + "_bucket", addLabel(labels, "le", le), histogram.getCountBelowPowerOfTwo(exponent));
+                    }
+                    appendSample(builder, family.name + "_bucket", addLabel(labels, "le", "+Inf"), count);
+                    appendSample(builder, family.name + "_sum", labels, histogram.getSum() / family.scale);
+                    appendSample(builder, family.name + "_count", labels, count);
+                }
+                else if (value instanceof LongAdder)
+                {
+                    appendSample(builder, family.name, labels, ((LongAdder) value).sum());
+                }
+                else
+                {
+                    appendSample(builder, family.name, labels, ((Gauge) value).get());
+                }
+            }
+        }
+        return builder.toString();
+    }
+
+    private static void appendSample(final StringBuilder builder, final String name, final String labels, final double value)
+    {
+        builder.append(name);
+        if (!labels.isEmpty())
+        {
+            builder.append('{').append(labels).append('}');
+        }
+        builder.append(' ').append(formatValue(value)).append('\n');
+    }
+
+    private static String formatValue(final double value)
+    {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15)
+        {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    private static String addLabel(final String labels, final String name, final String value)
+    {
+        final String label = formatLabels(new String[]{name, value});
+        return labels.isEmpty() ? label : labels + "," + label;
+    }
+
+    static String formatLabels(final String[] labels)
+    {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i + 1 < labels.length; i += 2)
+        {
+            if (builder.length() > 0)
+            {
+                builder.append(',');
+            }
+            builder.append(labels[i]).append("=\"");
+            final String value = labels[i + 1] == null ? "" : labels[i + 1];
+            for (int j = 0; j < value.length(); j++)
+            {
+                final char c = value.charAt(j);
+                switch (c)
+                {
+                    case '\\':
+                        builder.append("\\\\");
+                        break;
+                    case '"':
+                        builder.append("\\\"");
+                        break;
+                    case '\n':
+                        builder.append("\\n");
+                        break;
+                    default:
+                        builder.append(c);
+                }
+            }
+            builder.append('"');
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hands out mutual exclusion keys for jobs and job steps.
+ * Keys are backed by session level advisory locks on the main connection, so they are respected by every agent
+ * using the same jpgAgent database.  Advisory locks are re-entrant within a session, so keys held by this agent
+ * are also tracked locally, along with the job holding them.
+ * The locks are lost with the main connection, so they are taken again whenever it is replaced, and jobs whose keys
+ * were taken by another agent in the meantime are killed.
+ */
+public enum MutexManager
+{
+    INSTANCE;
+
+    // First key of the two key advisory lock functions, keeps jpgAgent locks apart from any used by job code.
+    private static final int lock_namespace = 0x6A706761;
+    // Key to the id of the job holding it
+    private final Map<String, Integer> held_keys = new ConcurrentHashMap<>();
+
+    /**
+     * Tries to acquire all of the keys without blocking.
+     * Either all keys are acquired and true is returned, or none are and false is returned.
+     *
+     * @param keys
+     * @param job_id job the keys are held for.
+     * @return
+     */
+    public boolean tryAcquire(final String[] keys, final int job_id)
+    {
+        if (keys == null || keys.length == 0)
+        {
+            return true;
+        }
+
+        final List<String> acquired_keys = new ArrayList<>();
+        for (String key : keys)
+        {
+            if (!tryAcquire(key, job_id))
+            {
+                release(acquired_keys.toArray(new String[acquired_keys.size()]), job_id);
+                return false;
+            }
+            acquired_keys.add(key);
+        }
+        return true;
+    }
+
+    /**
+     * Releases all of the keys held for the job.
+     * Keys no longer held for the job, because they were lost and taken by another job since, are left alone.
+     *
+     * @param keys
+     * @param job_id
+     */
+    public void release(final String[] keys, final int job_id)
+    {
+        if (keys == null)
+        {
+            return;
+        }
+
+        for (String key : keys)
+        {
+            release(key, job_id);
+        }
+    }
+
+    /**
+     * Releases every key held by this agent.
+     */
+    public void releaseAll()
+    {
+        for (final Map.Entry<String, Integer> entry : held_keys.entrySet())
+        {
+            release(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Takes the locks of all held keys again, after the main connection was replaced and its locks were lost.
+     * Jobs holding keys which can no longer be acquired are killed, as another agent may be running under them.
+     */
+    public void reacquire()
+    {
+        for (final Map.Entry<String, Integer> entry : held_keys.entrySet())
+        {
+            if (!lock(entry.getKey()))
+            {
+                Config.INSTANCE.logger.warn("Mutex key: {} was lost with the main connection, killing job_id: {}.", entry.getKey(), entry.getValue());
+                held_keys.remove(entry.getKey(), entry.getValue());
+                JobRegistry.INSTANCE.killJob(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Returns if the key is currently held by this agent.
+     *
+     * @param key
+     * @return
+     */
+    public boolean isHeld(final String key)
+    {
+        return held_keys.containsKey(key);
+    }
+
+    private boolean tryAcquire(final String key, final int job_id)
+    {
+        if (held_keys.putIfAbsent(key, job_id) != null)
+        {
+            Config.INSTANCE.logger.debug("Mutex key: {} is already held by this agent.", key);
+            return false;
+        }
+
+        final boolean acquired = lock(key);
+        if (!acquired)
+        {
+            Config.INSTANCE.logger.debug("Mutex key: {} is held by another agent.", key);
+            held_keys.remove(key, job_id);
+        }
+        return acquired;
+    }
+
+    private boolean lock(final String key)
+    {
+        boolean acquired = false;
+        final String lock_sql = "SELECT pg_try_advisory_lock(?, hashtext(?));";
+        try (final PreparedStatement statement = Database.INSTANCE.getMainConnection().prepareStatement(lock_sql))
+        {
+            statement.setInt(1, lock_namespace);
+            statement.setString(2, key);
+            try (final ResultSet result_set = statement.executeQuery())
+            {
+                while (result_set.next())
+                {
+                    acquired = result_set.getBoolean(1);
+                }
+            }
+        }
+        catch (final SQLException e)
+        {
+            Config.INSTANCE.logger.error("An error occurred acquiring mutex key: {}.", key);
+            Config.INSTANCE.logger.error(e.getMessage());
+        }
+        return acquired;
+    }
+
+    private void release(final String key, final int job_id)
+    {
+        if (!held_keys.remove(key, job_id))
+        {
+            return;
+        }
+
+        final String unlock_sql = "SELECT pg_advisory_unlock(?, hashtext(?));";
+        try (final PreparedStatement statement = Database.INSTANCE.getMainConnection().prepareStatement(unlock_sql))
+        {
+            statement.setInt(1, lock_namespace);
+            statement.setString(2, key);
+            statement.execute();
+        }
+        catch (final SQLException e)
+        {
+            Config.INSTANCE.logger.error("An error occurred releasing mutex key: {}.", key);
+            Config.INSTANCE.logger.error(e.getMessage());
+        }
+    }
+}
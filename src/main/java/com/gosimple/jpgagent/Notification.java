@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A rendered notification about a job or job step, along with the token values it was rendered with.
+ */
+public class Notification
+{
+    private final String[] to;
+    private final String subject;
+    private final String body;
+    private final Map<String, String> values;
+    private final long time = System.currentTimeMillis();
+    private volatile boolean rejected = false;
+
+    /**
+     * @param to email recipients, may be null for sinks other than smtp.
+     * @param subject
+     * @param body
+     * @param values token to value.
+     */
+    public Notification(final String[] to, final String subject, final String body, final Map<String, String> values)
+    {
+        this.to = to;
+        this.subject = subject;
+        this.body = body;
+        this.values = values == null ? Collections.<String, String>emptyMap() : values;
+    }
+
+    public String[] getTo()
+    {
+        return to;
+    }
+
+    public String getSubject()
+    {
+        return subject;
+    }
+
+    public String getBody()
+    {
+        return body;
+    }
+
+    public Map<String, String> getValues()
+    {
+        return values;
+    }
+
+    public long getTime()
+    {
+        return time;
+    }
+
+    /**
+     * Marks the notification as one which can never be delivered, e.g. because of an invalid address.
+     * A sink removes a rejected notification from its batch like a delivered one, but it is counted as failed.
+     */
+    public void reject()
+    {
+        rejected = true;
+    }
+
+    public boolean isRejected()
+    {
+        return rejected;
+    }
+
+    /**
+     * Returns the notification as a JSON object, with the token values as fields named after the tokens.
+     *
+     * @return
+     */
+    public String toJson()
+    {
+        final StringBuilder json = new StringBuilder("{");
+        json.append("\"time\":").append(time);
+        json.append(",\"subject\":");
+        appendJsonString(json, subject);
+        json.append(",\"body\":");
+        appendJsonString(json, body);
+        json.append(",\"to\":");
+        if (to == null)
+        {
+            json.append("null");
+        }
+        else
+        {
+            json.append('[');
+            for (int i = 0; i < to.length; i++)
+            {
+                if (i > 0)
+                {
+                    json.append(',');
+                }
+                appendJsonString(json, to[i]);
+            }
+            json.append(']');
+        }
+        for (Map.Entry<String, String> entry : new TreeMap<>(values).entrySet())
+        {
+            json.append(',');
+            appendJsonString(json, entry.getKey().replace("~", ""));
+            json.append(':');
+            appendJsonString(json, entry.getValue());
+        }
+        return json.append('}').toString();
+    }
+
+    /**
+     * Appends a string as a JSON string literal.
+     *
+     * @param json
+     * @param value
+     */
+    static void appendJsonString(final StringBuilder json, final String value)
+    {
+        if (value == null)
+        {
+            json.append("null");
+            return;
+        }
+        json.append('"');
+        for (int i = 0; i < value.length(); i++)
+        {
+            final char c = value.charAt(i);
+            switch (c)
+            {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20)
+                    {
+                        json.append(String.format("\\u%04x", (int) c));
+                    }
+                    else
+                    {
+                        json.append(c);
+                    }
+            }
+        }
+        json.append('"');
+    }
+}
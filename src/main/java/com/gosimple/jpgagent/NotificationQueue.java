@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers notifications to one sink in the background.
+ * Notifications go into a bounded queue and are sent in batches by a single thread.  A failed batch is retried with
+ * backoff, and notifications are dropped if the queue is full.
+ */
+public class NotificationQueue
+{
+    // Time without notifications after which the sink is told it's idle
+    private static final long idle_timeout = 30000;
+
+    private final NotificationSink sink;
+    private final BlockingQueue<Notification> queue;
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private boolean started = false;
+    // Notifications queued or taken by the delivery thread and not yet delivered or failed
+    private final AtomicInteger pending = new AtomicInteger();
+
+    public NotificationQueue(final NotificationSink sink)
+    {
+        this.sink = sink;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, Config.INSTANCE.notify_queue_size));
+    }
+
+    /**
+     * Queues a notification to be delivered.
+     *
+     * @param notification
+     */
+    public void send(final Notification notification)
+    {
+        start();
+        // Counted before it can be taken, so flush never sees it neither queued nor pending.
+        pending.incrementAndGet();
+        if (!queue.offer(notification))
+        {
+            pending.decrementAndGet();
+            dropped.incrementAndGet();
+            Config.INSTANCE.logger.warn("Notification queue for {} is full, dropping: {}", sink.getName(), notification.getSubject());
+        }
+    }
+
+    /**
+     * Waits until all queued notifications are delivered or have failed.
+     *
+     * @param timeout milliseconds.
+     * @return true if the queue is empty.
+     * @throws InterruptedException
+     */
+    public boolean flush(final long timeout) throws InterruptedException
+    {
+        final long deadline = System.currentTimeMillis() + timeout;
+        while (pending.get() > 0)
+        {
+            if (System.currentTimeMillis() >= deadline)
+            {
+                return false;
+            }
+            Thread.sleep(50);
+        }
+        return true;
+    }
+
+    public NotificationSink getSink()
+    {
+        return sink;
+    }
+
+    /**
+     * @return number of notifications delivered.
+     */
+    public long getSent()
+    {
+        return sent.get();
+    }
+
+    /**
+     * @return number of notifications which failed to deliver after all retries.
+     */
+    public long getFailed()
+    {
+        return failed.get();
+    }
+
+    /**
+     * @return number of notifications dropped because the queue was full.
+     */
+    public long getDropped()
+    {
+        return dropped.get();
+    }
+
+    /**
+     * @return number of notifications waiting to be delivered.
+     */
+    public int getQueued()
+    {
+        return queue.size();
+    }
+
+    private synchronized void start()
+    {
+        if (started)
+        {
+            return;
+        }
+        final Thread delivery_thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                deliver();
+            }
+        }, "Notify-" + sink.getName());
+        delivery_thread.setDaemon(true);
+        delivery_thread.start();
+        started = true;
+    }
+
+    /**
+     * Delivery thread, sends queued notifications until interrupted.
+     */
+    private void deliver()
+    {
+        final List<Notification> batch = new ArrayList<>();
+        while (true)
+        {
+            int taken = 0;
+            try
+            {
+                Notification notification = queue.poll(idle_timeout, TimeUnit.MILLISECONDS);
+                if (notification == null)
+                {
+                    sink.idle();
+                    notification = queue.take();
+                }
+                batch.add(notification);
+                queue.drainTo(batch, Math.max(0, Config.INSTANCE.notify_batch_size - 1));
+                taken = batch.size();
+                sendWithRetry(batch);
+            }
+            catch (final InterruptedException e)
+            {
+                sink.idle();
+                return;
+            }
+            finally
+            {
+                batch.clear();
+                pending.addAndGet(-taken);
+            }
+        }
+    }
+
+    private void sendWithRetry(final List<Notification> batch) throws InterruptedException
+    {
+        final Backoff backoff = new Backoff(Config.INSTANCE.notify_retry_wait, Config.INSTANCE.notify_retry_max_wait);
+        for (int attempt = 0; ; attempt++)
+        {
+            final List<Notification> attempted = new ArrayList<>(batch);
+            try
+            {
+                sink.send(batch);
+                countRemoved(attempted, batch);
+                return;
+            }
+            catch (final Exception e)
+            {
+                // Anything the sink removed from the batch was delivered or rejected before it failed.
+                countRemoved(attempted, batch);
+                if (attempt >= Config.INSTANCE.notify_retries)
+                {
+                    failed.addAndGet(batch.size());
+                    Config.INSTANCE.logger.error("Unable to deliver {} notification(s) to {}.", batch.size(), sink.getName());
+                    Config.INSTANCE.logger.error(e.getMessage());
+                    return;
+                }
+                Config.INSTANCE.logger.debug("Unable to deliver notifications to {}, retrying: {}", sink.getName(), e.getMessage());
+            }
+            Thread.sleep(backoff.nextWait());
+        }
+    }
+
+    /**
+     * Counts the notifications the sink removed from the batch as sent, or failed if it rejected them.
+     *
+     * @param attempted the batch before it was sent.
+     * @param batch the batch after it was sent.
+     */
+    private void countRemoved(final List<Notification> attempted, final List<Notification> batch)
+    {
+        for (final Notification notification : attempted)
+        {
+            if (batch.contains(notification))
+            {
+                continue;
+            }
+            if (notification.isRejected())
+            {
+                failed.incrementAndGet();
+            }
+            else
+            {
+                sent.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import java.util.List;
+
+/**
+ * Destination for notifications, picked per job or job step with the NOTIFY_VIA annotation.
+ * Each sink is fed by its own queue and thread, so a slow sink never holds up another one or a job.
+ * Additional sinks can be provided on the classpath through {@link java.util.ServiceLoader}.
+ */
+public interface NotificationSink
+{
+    /**
+     * Name used to pick the sink with the NOTIFY_VIA annotation.
+     *
+     * @return
+     */
+    String getName();
+
+    /**
+     * Delivers a batch of notifications.
+     * Notifications which were delivered may be removed from the list, so a retry only sends the rest.
+     * A notification which can never be delivered should be {@link Notification#reject() rejected} and removed,
+     * rather than failing the whole batch.
+     *
+     * @param notifications
+     * @throws Exception if delivery failed, the remaining notifications are retried.
+     */
+    void send(List<Notification> notifications) throws Exception;
+
+    /**
+     * Called when no notifications have been waiting for a while, to release any open connections.
+     */
+    void idle();
+}
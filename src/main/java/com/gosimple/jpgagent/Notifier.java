@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+/**
+ * Routes notifications to the sinks they are meant for, each sink having its own delivery queue.
+ * The smtp sink is always available, the webhook and file sinks when they are configured, and any other
+ * {@link NotificationSink} found through {@link ServiceLoader}.
+ */
+public enum Notifier
+{
+    INSTANCE;
+
+    private final Map<String, NotificationQueue> queues = new LinkedHashMap<>();
+
+    Notifier()
+    {
+        register(new SmtpSink());
+        if (Config.INSTANCE.webhook_url != null)
+        {
+            try
+            {
+                register(new WebhookSink(new URL(Config.INSTANCE.webhook_url)));
+            }
+            catch (final MalformedURLException e)
+            {
+                Config.INSTANCE.logger.error("Invalid webhook url: {}", Config.INSTANCE.webhook_url);
+                Config.INSTANCE.logger.error(e.getMessage());
+            }
+        }
+        if (Config.INSTANCE.notify_file != null)
+        {
+            register(new FileSink(Paths.get(Config.INSTANCE.notify_file)));
+        }
+        try
+        {
+            for (NotificationSink sink : ServiceLoader.load(NotificationSink.class))
+            {
+                register(sink);
+            }
+        }
+        catch (final ServiceConfigurationError e)
+        {
+            Config.INSTANCE.logger.error("Unable to load notification sinks.");
+            Config.INSTANCE.logger.error(e.getMessage());
+        }
+    }
+
+    private void register(final NotificationSink sink)
+    {
+        Config.INSTANCE.logger.debug("Registering notification sink: {}", sink.getName());
+        queues.put(sink.getName(), new NotificationQueue(sink));
+    }
+
+    /**
+     * Sends a notification through each of the named sinks.
+     * Email goes through the digest, if enabled and digest is true.
+     *
+     * @param sink_names
+     * @param notification
+     * @param digest
+     */
+    public void send(final String[] sink_names, final Notification notification, final boolean digest)
+    {
+        for (String sink_name : sink_names)
+        {
+            if (SmtpSink.NAME.equals(sink_name))
+            {
+                if (notification.getTo() == null)
+                {
+                    Config.INSTANCE.logger.warn("No EMAIL_TO for email: {}", notification.getSubject());
+                    continue;
+                }
+                EmailUtil.sendEmailFromNoReply(notification.getTo(), notification.getSubject(), notification.getBody(), digest);
+            }
+            else
+            {
+                deliver(sink_name, notification);
+            }
+        }
+    }
+
+    /**
+     * Queues a notification for delivery by a sink.
+     *
+     * @param sink_name
+     * @param notification
+     */
+    public void deliver(final String sink_name, final Notification notification)
+    {
+        final NotificationQueue queue = queues.get(sink_name);
+        if (queue == null)
+        {
+            Config.INSTANCE.logger.warn("Notification sink {} is not configured, dropping: {}", sink_name, notification.getSubject());
+            return;
+        }
+        queue.send(notification);
+    }
+
+    /**
+     * Waits until every sink's queue is delivered or has failed.
+     *
+     * @param timeout milliseconds.
+     * @return true if all queues are empty.
+     * @throws InterruptedException
+     */
+    public boolean flush(final long timeout) throws InterruptedException
+    {
+        final long deadline = System.currentTimeMillis() + timeout;
+        boolean flushed = true;
+        for (NotificationQueue queue : queues.values())
+        {
+            flushed &= queue.flush(Math.max(0, deadline - System.currentTimeMillis()));
+        }
+        return flushed;
+    }
+
+    /**
+     * @return number of notifications waiting to be delivered over all sinks.
+     */
+    public int getQueued()
+    {
+        int queued = 0;
+        for (NotificationQueue queue : queues.values())
+        {
+            queued += queue.getQueued();
+        }
+        return queued;
+    }
+
+    /**
+     * @return the delivery queue of each sink.
+     */
+    public Collection<NotificationQueue> getQueues()
+    {
+        return Collections.unmodifiableCollection(queues.values());
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Creates partial indexes on the pgAgent tables which support the queries jpgAgent runs most.
+ * The stock pgAgent schema has no index for finding due jobs or running log rows, so those queries scan
+ * the whole table as it grows.
+ *
+ * Indexes are created concurrently on a separate connection so dispatch isn't held up.  Only the agent holding an
+ * advisory lock on that connection creates them, so agents starting together don't race to build or drop the same
+ * index.
+ */
+public enum SchemaOptimizer
+{
+    INSTANCE;
+
+    // First key of the two key advisory lock functions, kept apart from the mutex and leader namespaces.
+    private static final int optimizer_lock_namespace = 0x6A70676F;
+
+    // Index name and definition.
+    private final Map<String, String> indexes = new LinkedHashMap<>();
+
+    SchemaOptimizer()
+    {
+        // Claim of due jobs in JPGAgent.runJobs.
+        indexes.put("jpgagent_pga_job_due_idx",
+                "ON pgagent.pga_job (jobnextrun) WHERE jobenabled AND jobagentid IS NULL");
+        // Release of jobs claimed by dead agents.
+        indexes.put("jpgagent_pga_job_agent_idx",
+                "ON pgagent.pga_job (jobagentid) WHERE jobagentid IS NOT NULL");
+        // Cleanup of running job logs.
+        indexes.put("jpgagent_pga_joblog_running_idx",
+                "ON pgagent.pga_joblog (jlgjobid) WHERE jlgstatus = 'r'");
+        // Cleanup of running job step logs.
+        indexes.put("jpgagent_pga_jobsteplog_running_idx",
+                "ON pgagent.pga_jobsteplog (jsljlgid) WHERE jslstatus = 'r'");
+    }
+
+    /**
+     * Creates any missing indexes and reports the plans of the hot queries, in the background.
+     */
+    public void start()
+    {
+        ThreadFactory.INSTANCE.executeTask(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                optimize();
+            }
+        });
+    }
+
+    private void optimize()
+    {
+        try (final Connection connection = Database.INSTANCE.getConnection(Config.INSTANCE.db_host, Config.INSTANCE.db_database))
+        {
+            // The lock is released when the connection is closed.
+            if (tryLock(connection))
+            {
+                for (Map.Entry<String, String> index : indexes.entrySet())
+                {
+                    createIndex(connection, index.getKey(), index.getValue());
+                }
+            }
+            else
+            {
+                Config.INSTANCE.logger.info("Another agent is creating the pgAgent indexes, skipping.");
+            }
+            reportPlans(connection);
+        }
+        catch (final SQLException e)
+        {
+            Config.INSTANCE.logger.error("An error occurred optimizing the pgAgent schema.");
+            Config.INSTANCE.logger.error(e.getMessage());
+        }
+    }
+
+    /**
+     * Tries to take the session level advisory lock which guards index creation.
+     *
+     * @param connection
+     * @return true if the lock was taken.
+     * @throws SQLException
+     */
+    private boolean tryLock(final Connection connection) throws SQLException
+    {
+        final String lock_sql = "SELECT pg_try_advisory_lock(?, 0);";
+        try (final PreparedStatement statement = connection.prepareStatement(lock_sql))
+        {
+            statement.setInt(1, optimizer_lock_namespace);
+            try (final ResultSet result_set = statement.executeQuery())
+            {
+                return result_set.next() && result_set.getBoolean(1);
+            }
+        }
+    }
+
+    /**
+     * Creates an index concurrently if it doesn't exist.  An invalid index left by a failed concurrent build
+     * is dropped and built again.
+     *
+     * @param connection
+     * @param index_name
+     * @param index_definition
+     * @throws SQLException
+     */
+    private void createIndex(final Connection connection, final String index_name, final String index_definition) throws SQLException
+    {
+        final String index_valid_sql =
+                "SELECT i.indisvalid " +
+                        "FROM pg_class c " +
+                        "INNER JOIN pg_namespace n " +
+                        "ON n.oid = c.relnamespace " +
+                        "INNER JOIN pg_index i " +
+                        "ON i.indexrelid = c.oid " +
+                        "WHERE n.nspname = 'pgagent' " +
+                        "AND c.relname = ?;";
+
+        Boolean index_valid = null;
+        try (final PreparedStatement statement = connection.prepareStatement(index_valid_sql))
+        {
+            statement.setString(1, index_name);
+            try (final ResultSet result_set = statement.executeQuery())
+            {
+                if (result_set.next())
+                {
+                    index_valid = result_set.getBoolean("indisvalid");
+                }
+            }
+        }
+
+        if (index_valid != null && index_valid)
+        {
+            Config.INSTANCE.logger.debug("Index {} already exists.", index_name);
+            return;
+        }
+
+        try (final Statement statement = connection.createStatement())
+        {
+            if (index_valid != null)
+            {
+                Config.INSTANCE.logger.info("Dropping invalid index {}.", index_name);
+                statement.execute("DROP INDEX CONCURRENTLY pgagent." + index_name + ";");
+            }
+            Config.INSTANCE.logger.info("Creating index {}.", index_name);
+            statement.execute("CREATE INDEX CONCURRENTLY " + index_name + " " + index_definition + ";");
+        }
+    }
+
+    /**
+     * Logs the plans of the queries the indexes are meant to support.
+     *
+     * @param connection
+     * @throws SQLException
+     */
+    private void reportPlans(final Connection connection) throws SQLException
+    {
+        final Map<String, String> queries = new LinkedHashMap<>();
+        queries.put("due jobs",
+                "EXPLAIN SELECT jobid " +
+                        "FROM pgagent.pga_job " +
+                        "WHERE jobenabled " +
+                        "AND jobagentid IS NULL " +
+                        "AND jobnextrun <= now() " +
+                        "AND (jobhostagent = '' OR jobhostagent = ?);");
+        queries.put("running job logs",
+                "EXPLAIN SELECT jlgid " +
+                        "FROM pgagent.pga_joblog " +
+                        "WHERE jlgstatus = 'r';");
+        queries.put("running job step logs",
+                "EXPLAIN SELECT jslid " +
+                        "FROM pgagent.pga_jobsteplog " +
+                        "WHERE jslstatus = 'r';");
+
+        for (Map.Entry<String, String> query : queries.entrySet())
+        {
+            try (final PreparedStatement statement = connection.prepareStatement(query.getValue()))
+            {
+                if (query.getValue().contains("?"))
+                {
+                    statement.setString(1, Config.INSTANCE.hostname);
+                }
+                final StringBuilder plan = new StringBuilder();
+                try (final ResultSet result_set = statement.executeQuery())
+                {
+                    while (result_set.next())
+                    {
+                        plan.append(System.getProperty("line.separator"));
+                        plan.append(result_set.getString(1));
+                    }
+                }
+                Config.INSTANCE.logger.info("Plan for {}:{}", query.getKey(), plan);
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Splits due jobs between cooperating agents.
+ * Each agent registers a capacity along with its heartbeat, and a job is owned by one live agent picked with weighted rendezvous hashing
+ * of the job id over all live agents.  When agents join or leave, only the jobs owned by that agent move.
+ */
+public enum Sharding
+{
+    INSTANCE;
+
+    // Live agents keyed by pid with their capacity.
+    private volatile Map<Integer, Integer> live_agents = Collections.emptyMap();
+
+    /**
+     * Returns if sharding is enabled.
+     *
+     * @return
+     */
+    public boolean isEnabled()
+    {
+        return Config.INSTANCE.sharding;
+    }
+
+    /**
+     * Reloads the list of live agents and their capacity.
+     *
+     * @throws SQLException
+     */
+    public void refreshAgents() throws SQLException
+    {
+        if (!Heartbeat.INSTANCE.isRegistered())
+        {
+            live_agents = Collections.emptyMap();
+            return;
+        }
+
+        final String live_agents_sql =
+                "SELECT jagpid " +
+                        ", jagcapacity " +
+                        "FROM pgagent.jpgagent_agent " +
+                        "WHERE jagcapacity > 0 " +
+                        "AND jaglastseen >= now() - ? * interval '1 millisecond';";
+
+        final Map<Integer, Integer> agents = new HashMap<>();
+        try (final PreparedStatement statement = Database.INSTANCE.getMainConnection().prepareStatement(live_agents_sql))
+        {
+            statement.setLong(1, Config.INSTANCE.agent_lease);
+            try (final ResultSet result_set = statement.executeQuery())
+            {
+                while (result_set.next())
+                {
+                    agents.put(result_set.getInt("jagpid"), result_set.getInt("jagcapacity"));
+                }
+            }
+        }
+
+        if (!agents.keySet().equals(live_agents.keySet()))
+        {
+            Config.INSTANCE.logger.info("Live agents changed, sharding jobs over {} agent(s).", agents.size());
+        }
+        live_agents = agents;
+    }
+
+    /**
+     * Returns if this agent owns the job.
+     * If this agent isn't in the list of live agents yet, it owns every job so that nothing is left unclaimed.
+     *
+     * @param job_id
+     * @return
+     */
+    public boolean isOwner(final int job_id)
+    {
+        final Map<Integer, Integer> agents = live_agents;
+        final int pid = Database.INSTANCE.getPid();
+        if (!agents.containsKey(pid))
+        {
+            return true;
+        }
+        return selectOwner(job_id, agents) == pid;
+    }
+
+    /**
+     * Returns the capacity of this agent.
+     *
+     * @return
+     */
+    public int getCapacity()
+    {
+        return Config.INSTANCE.shard_capacity > 0 ? Config.INSTANCE.shard_capacity : Config.INSTANCE.thread_pool_size;
+    }
+
+    /**
+     * Returns the pid of the agent which owns the job, using weighted rendezvous hashing.
+     *
+     * @param job_id
+     * @param agents agent pid and capacity.
+     * @return
+     */
+    static int selectOwner(final int job_id, final Map<Integer, Integer> agents)
+    {
+        int owner = -1;
+        double owner_score = Double.NEGATIVE_INFINITY;
+        for (Map.Entry<Integer, Integer> agent : agents.entrySet())
+        {
+            // Uniform value in (0, 1) for this job and agent.
+            final double uniform = ((mix(((long) job_id << 32) | (agent.getKey() & 0xFFFFFFFFL)) >>> 11) + 0.5) / (1L << 53);
+            final double score = agent.getValue() / -Math.log(uniform);
+            if (score > owner_score || (score == owner_score && agent.getKey() < owner))
+            {
+                owner = agent.getKey();
+                owner_score = score;
+            }
+        }
+        return owner;
+    }
+
+    /**
+     * SplitMix64 finalizer.
+     *
+     * @param value
+     * @return
+     */
+    private static long mix(long value)
+    {
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import javax.mail.Authenticator;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.PasswordAuthentication;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Sends notifications as email, over one smtp connection which is kept open while there is mail to send.
+ * An email with an invalid or refused address is rejected on its own, only connection failures fail the batch.
+ */
+public class SmtpSink implements NotificationSink
+{
+    public static final String NAME = "smtp";
+
+    private Session session;
+    private Transport transport;
+
+    @Override
+    public String getName()
+    {
+        return NAME;
+    }
+
+    @Override
+    public void send(final List<Notification> notifications) throws MessagingException
+    {
+        final JfrEvents.EmailSendEvent jfr_event = JfrEvents.available ? new JfrEvents.EmailSendEvent() : null;
+        if (jfr_event != null)
+        {
+            jfr_event.begin();
+            jfr_event.emails = notifications.size();
+        }
+        int rejected = 0;
+        try
+        {
+            final Iterator<Notification> iterator = notifications.iterator();
+            while (iterator.hasNext())
+            {
+                final Notification notification = iterator.next();
+                try
+                {
+                    final MimeMessage message = toMimeMessage(notification);
+                    getTransport().sendMessage(message, message.getAllRecipients());
+                }
+                catch (final AddressException | SendFailedException e)
+                {
+                    // Retrying won't help this email, and it mustn't hold up the rest of the batch.
+                    Config.INSTANCE.logger.error("Unable to send email, rejecting: {}", notification.getSubject());
+                    Config.INSTANCE.logger.error(e.getMessage());
+                    notification.reject();
+                    rejected++;
+                }
+                catch (final MessagingException e)
+                {
+                    idle();
+                    throw e;
+                }
+                iterator.remove();
+            }
+        }
+        finally
+        {
+            if (jfr_event != null)
+            {
+                jfr_event.sent = jfr_event.emails - notifications.size() - rejected;
+                jfr_event.commit();
+            }
+        }
+    }
+
+    @Override
+    public void idle()
+    {
+        if (transport == null)
+        {
+            return;
+        }
+        try
+        {
+            transport.close();
+        }
+        catch (final MessagingException e)
+        {
+            Config.INSTANCE.logger.debug(e.getMessage());
+        }
+        transport = null;
+    }
+
+    private MimeMessage toMimeMessage(final Notification notification) throws MessagingException
+    {
+        final MimeMessage message = new MimeMessage(getSession());
+        message.setFrom(new InternetAddress(Config.INSTANCE.smtp_email));
+        for (String address : notification.getTo())
+        {
+            message.addRecipient(Message.RecipientType.TO, new InternetAddress(address));
+        }
+        message.setSubject(notification.getSubject());
+        message.setContent(notification.getBody(), "text/html; charset=utf-8");
+        return message;
+    }
+
+    private Session getSession()
+    {
+        if (session != null)
+        {
+            return session;
+        }
+        final Properties email_properties = new Properties(System.getProperties());
+        email_properties.put("mail.smtp.host", Config.INSTANCE.smtp_host);
+        if (Config.INSTANCE.smtp_port != null)
+        {
+            email_properties.put("mail.smtp.port", Config.INSTANCE.smtp_port);
+        }
+        if (Config.INSTANCE.smtp_ssl)
+        {
+            if (Config.INSTANCE.smtp_port != null)
+            {
+                email_properties.put("mail.smtp.socketFactory.port", Config.INSTANCE.smtp_port);
+            }
+            email_properties.put("mail.smtp.socketFactory.class", "javax.net.ssl.SSLSocketFactory");
+        }
+
+        if (null != Config.INSTANCE.smtp_user)
+        {
+            email_properties.put("mail.smtp.auth", "true");
+            session = Session.getInstance(email_properties, new Authenticator()
+            {
+                @Override
+                protected PasswordAuthentication getPasswordAuthentication()
+                {
+                    return new PasswordAuthentication(Config.INSTANCE.smtp_user, Config.INSTANCE.smtp_password);
+                }
+            });
+        }
+        else
+        {
+            email_properties.put("mail.smtp.auth", "false");
+            session = Session.getInstance(email_properties);
+        }
+        return session;
+    }
+
+    /**
+     * Returns the open smtp connection, connecting if needed.
+     *
+     * @return
+     * @throws MessagingException
+     */
+    private Transport getTransport() throws MessagingException
+    {
+        if (transport == null || !transport.isConnected())
+        {
+            idle();
+            transport = getSession().getTransport("smtp");
+            transport.connect();
+        }
+        return transport;
+    }
+}
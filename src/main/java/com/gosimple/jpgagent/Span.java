@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A timed section of a job's execution, exported by the {@link Tracer} once ended.
+ * Spans form a tree: a job span, its step spans, and their phases.  When tracing is off every span is
+ * {@link #NONE}, which records nothing.
+ */
+public class Span
+{
+    public static final Span NONE = new Span(null, null, 0, 0, 0, 0, 0);
+
+    private final String name;
+    private final String category;
+    private final long span_id;
+    private final long parent_id;
+    private final int job_id;
+    private final long thread_id;
+    private final long start_micros;
+    private long duration_micros = -1;
+    private Map<String, String> args = null;
+
+    Span(final String name, final String category, final long span_id, final long parent_id, final int job_id, final long thread_id, final long start_micros)
+    {
+        this.name = name;
+        this.category = category;
+        this.span_id = span_id;
+        this.parent_id = parent_id;
+        this.job_id = job_id;
+        this.thread_id = thread_id;
+        this.start_micros = start_micros;
+    }
+
+    /**
+     * Starts a phase of this span on the current thread.
+     *
+     * @param name
+     * @return
+     */
+    public Span child(final String name)
+    {
+        if (this == NONE)
+        {
+            return NONE;
+        }
+        return Tracer.INSTANCE.startSpan(name, "phase", job_id, this);
+    }
+
+    /**
+     * Adds an argument shown with the span.
+     *
+     * @param key
+     * @param value
+     * @return this span.
+     */
+    public synchronized Span arg(final String key, final Object value)
+    {
+        if (this == NONE)
+        {
+            return this;
+        }
+        if (args == null)
+        {
+            args = new LinkedHashMap<>();
+        }
+        args.put(key, String.valueOf(value));
+        return this;
+    }
+
+    /**
+     * Ends the span and queues it to be written, only the first call has any effect.
+     */
+    public void end()
+    {
+        if (this == NONE)
+        {
+            return;
+        }
+        synchronized (this)
+        {
+            if (duration_micros >= 0)
+            {
+                return;
+            }
+            duration_micros = Math.max(0, Tracer.INSTANCE.nowMicros() - start_micros);
+        }
+        Tracer.INSTANCE.export(this);
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public boolean isRoot()
+    {
+        return parent_id == 0;
+    }
+
+    public long getSpanId()
+    {
+        return span_id;
+    }
+
+    public int getJobId()
+    {
+        return job_id;
+    }
+
+    /**
+     * Returns the span as a complete event in the Chrome trace event format.
+     * Spans are grouped by job (pid) and thread (tid).
+     *
+     * @return
+     */
+    public synchronized String toJson()
+    {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("{\"name\":");
+        Notification.appendJsonString(builder, name);
+        builder.append(",\"cat\":");
+        Notification.appendJsonString(builder, category);
+        builder.append(",\"ph\":\"X\",\"ts\":").append(start_micros);
+        builder.append(",\"dur\":").append(duration_micros);
+        builder.append(",\"pid\":").append(job_id);
+        builder.append(",\"tid\":").append(thread_id);
+        builder.append(",\"args\":{\"span_id\":").append(span_id);
+        if (parent_id != 0)
+        {
+            builder.append(",\"parent_id\":").append(parent_id);
+        }
+        if (args != null)
+        {
+            for (final Map.Entry<String, String> arg : args.entrySet())
+            {
+                builder.append(',');
+                Notification.appendJsonString(builder, arg.getKey());
+                builder.append(':');
+                Notification.appendJsonString(builder, arg.getValue());
+            }
+        }
+        builder.append("}}");
+        return builder.toString();
+    }
+}
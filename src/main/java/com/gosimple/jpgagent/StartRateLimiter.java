@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Limits how quickly jobs are started, globally and per group.
+ * A group is the START_RATE_GROUP annotation on a job if it has one, otherwise the job class.
+ */
+public enum StartRateLimiter
+{
+    INSTANCE;
+
+    private final TokenBucket global_bucket;
+    private final Map<String, TokenBucket> group_buckets = new HashMap<>();
+    // Smallest wait for a permit seen since the last call to takeDeferredWaitMillis.
+    private long deferred_wait_millis = Long.MAX_VALUE;
+
+    StartRateLimiter()
+    {
+        if (Config.INSTANCE.start_rate > 0)
+        {
+            global_bucket = new TokenBucket(Config.INSTANCE.start_rate, Math.max(1, Config.INSTANCE.start_burst));
+        }
+        else
+        {
+            global_bucket = null;
+        }
+
+        if (Config.INSTANCE.start_rate_groups != null)
+        {
+            for (String group_setting : Config.INSTANCE.start_rate_groups.split(";"))
+            {
+                if (group_setting.trim().isEmpty())
+                {
+                    continue;
+                }
+                try
+                {
+                    final String[] name_value = group_setting.split("=", 2);
+                    final String[] rate_burst = name_value[1].split(":", 2);
+                    final double rate = Double.parseDouble(rate_burst[0].trim());
+                    final double burst = rate_burst.length > 1 ? Double.parseDouble(rate_burst[1].trim()) : 1;
+                    group_buckets.put(name_value[0].trim(), new TokenBucket(rate, burst));
+                }
+                catch (Exception e)
+                {
+                    Config.INSTANCE.logger.error("Unable to parse start rate group setting: {}.", group_setting);
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes a start permit for a job in the group if one is available in both the global and group buckets.
+     *
+     * @param group may be null.
+     * @return
+     */
+    public synchronized boolean tryAcquire(final String group)
+    {
+        final TokenBucket group_bucket = group == null ? null : group_buckets.get(group);
+        if (global_bucket != null && !global_bucket.hasPermit())
+        {
+            deferred_wait_millis = Math.min(deferred_wait_millis, global_bucket.getWaitMillis());
+            return false;
+        }
+        if (group_bucket != null && !group_bucket.tryAcquire())
+        {
+            deferred_wait_millis = Math.min(deferred_wait_millis, group_bucket.getWaitMillis());
+            return false;
+        }
+        if (global_bucket != null)
+        {
+            global_bucket.tryAcquire();
+        }
+        return true;
+    }
+
+    /**
+     * Returns the most jobs which could be started right now, or null if there is no global limit.
+     *
+     * @return
+     */
+    public synchronized Integer getClaimLimit()
+    {
+        if (global_bucket == null)
+        {
+            return null;
+        }
+        final int permits = global_bucket.getPermits();
+        if (permits == 0)
+        {
+            deferred_wait_millis = Math.min(deferred_wait_millis, global_bucket.getWaitMillis());
+        }
+        return permits;
+    }
+
+    /**
+     * Returns the smallest number of milliseconds until a job deferred since the last call could start,
+     * or Long.MAX_VALUE if no jobs were deferred.
+     *
+     * @return
+     */
+    public synchronized long takeDeferredWaitMillis()
+    {
+        final long wait = deferred_wait_millis;
+        deferred_wait_millis = Long.MAX_VALUE;
+        return wait;
+    }
+}
@@ -32,6 +32,7 @@ public enum ThreadFactory
     INSTANCE;
 
     private final ThreadPoolExecutor generalThreadPool;
+    private final ScheduledThreadPoolExecutor scheduledThreadPool;
 
     ThreadFactory()
     {
@@ -44,9 +45,37 @@ public enum ThreadFactory
                 SECONDS,
                 new LinkedBlockingQueue<>(),
                 new PriorityThreadFactory("GeneralPool", Thread.NORM_PRIORITY));
+        scheduledThreadPool = new ScheduledThreadPoolExecutor(
+                3,
+                new PriorityThreadFactory("ScheduledPool", Thread.NORM_PRIORITY));
     }
 
 
+    /**
+     * Stops both pools, interrupting anything still running.
+     */
+    public void shutdown()
+    {
+        scheduledThreadPool.shutdownNow();
+        generalThreadPool.shutdownNow();
+    }
+
+    /**
+     * @return number of tasks waiting for a thread in the general pool.
+     */
+    public int getQueueSize()
+    {
+        return generalThreadPool.getQueue().size();
+    }
+
+    /**
+     * @return approximate number of threads running a task in the general pool.
+     */
+    public int getActiveCount()
+    {
+        return generalThreadPool.getActiveCount();
+    }
+
     public void executeTask(Runnable r)
     {
         generalThreadPool.execute(r);
@@ -62,6 +91,19 @@ public enum ThreadFactory
         return generalThreadPool.submit(c);
     }
 
+    /**
+     * Runs a task repeatedly, waiting the delay between the end of one run and the start of the next.
+     *
+     * @param r
+     * @param delay
+     * @param unit
+     * @return
+     */
+    public ScheduledFuture<?> scheduleTask(Runnable r, long delay, TimeUnit unit)
+    {
+        return scheduledThreadPool.scheduleWithFixedDelay(r, delay, delay, unit);
+    }
+
     private class CancellableExecutor extends ThreadPoolExecutor
     {
         public CancellableExecutor(int corePoolSize, int maximumPoolSize, long keepAliveTime, TimeUnit unit, BlockingQueue<Runnable> workQueue)
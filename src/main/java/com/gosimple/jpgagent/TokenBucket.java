@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket which refills continuously at a fixed rate up to its capacity.
+ */
+public class TokenBucket
+{
+    private final double permits_per_second;
+    private final double capacity;
+    private double tokens;
+    private long last_refill;
+
+    /**
+     * Creates a full bucket.
+     *
+     * @param permits_per_second
+     * @param capacity maximum number of permits which can be taken in a burst.
+     */
+    public TokenBucket(final double permits_per_second, final double capacity)
+    {
+        if (permits_per_second <= 0 || capacity < 1)
+        {
+            throw new IllegalArgumentException("A token bucket needs a positive rate and a capacity of at least one.");
+        }
+        this.permits_per_second = permits_per_second;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.last_refill = System.nanoTime();
+    }
+
+    /**
+     * Takes a permit if one is available.
+     *
+     * @return
+     */
+    public boolean tryAcquire()
+    {
+        return tryAcquire(System.nanoTime());
+    }
+
+    /**
+     * Returns if a permit is available without taking it.
+     *
+     * @return
+     */
+    public boolean hasPermit()
+    {
+        return hasPermit(System.nanoTime());
+    }
+
+    /**
+     * Returns the number of whole permits currently available.
+     *
+     * @return
+     */
+    public int getPermits()
+    {
+        return getPermits(System.nanoTime());
+    }
+
+    /**
+     * Returns the number of milliseconds until the next permit is available.
+     *
+     * @return
+     */
+    public long getWaitMillis()
+    {
+        return getWaitMillis(System.nanoTime());
+    }
+
+    synchronized boolean tryAcquire(final long now)
+    {
+        refill(now);
+        if (tokens >= 1)
+        {
+            tokens -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    synchronized boolean hasPermit(final long now)
+    {
+        refill(now);
+        return tokens >= 1;
+    }
+
+    synchronized int getPermits(final long now)
+    {
+        refill(now);
+        return (int) tokens;
+    }
+
+    synchronized long getWaitMillis(final long now)
+    {
+        refill(now);
+        if (tokens >= 1)
+        {
+            return 0;
+        }
+        return (long) Math.ceil((1 - tokens) / permits_per_second * 1000);
+    }
+
+    private void refill(final long now)
+    {
+        if (now > last_refill)
+        {
+            tokens = Math.min(capacity, tokens + (now - last_refill) * permits_per_second / TimeUnit.SECONDS.toNanos(1));
+            last_refill = now;
+        }
+    }
+}
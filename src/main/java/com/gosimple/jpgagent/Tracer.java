@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes spans of job execution to --trace-file in the Chrome trace event format, which chrome://tracing and
+ * Perfetto load directly.  Spans are queued as they end and written by a background thread, so tracing never
+ * blocks a job; spans are dropped if the queue is full.
+ * The file is a JSON array whose closing bracket is left off, as the format allows, so it can be appended to
+ * across restarts.
+ */
+public enum Tracer
+{
+    INSTANCE;
+
+    private static final int queue_size = 10000;
+
+    private final BlockingQueue<Span> queue = new ArrayBlockingQueue<>(queue_size);
+    private final AtomicLong next_span_id = new AtomicLong(1);
+    private final AtomicLong dropped = new AtomicLong();
+    // Wall clock microseconds, advanced by the monotonic clock
+    private final long base_micros = System.currentTimeMillis() * 1000;
+    private final long base_nanos = System.nanoTime();
+    private volatile boolean enabled = false;
+    private volatile boolean writing = false;
+    private BufferedWriter writer;
+
+    /**
+     * Starts writing spans if --trace-file is set.
+     */
+    public synchronized void start()
+    {
+        if (enabled || Config.INSTANCE.trace_file == null)
+        {
+            return;
+        }
+        try
+        {
+            final Path path = Paths.get(Config.INSTANCE.trace_file);
+            final boolean is_new = !Files.exists(path) || Files.size(path) == 0;
+            writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            if (is_new)
+            {
+                writer.write("[\n");
+                writer.flush();
+            }
+        }
+        catch (final IOException e)
+        {
+            Config.INSTANCE.logger.error("Unable to open trace file: {}", Config.INSTANCE.trace_file);
+            Config.INSTANCE.logger.error(e.getMessage());
+            return;
+        }
+
+        final Thread thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                writeSpans();
+            }
+        }, "Tracer");
+        thread.setDaemon(true);
+        thread.start();
+        enabled = true;
+        Config.INSTANCE.logger.info("Writing traces to {}.", Config.INSTANCE.trace_file);
+    }
+
+    /**
+     * Starts the root span of a job on the current thread.
+     *
+     * @param job_id
+     * @return {@link Span#NONE} if tracing is off.
+     */
+    public Span startJobSpan(final int job_id)
+    {
+        return startSpan("job " + job_id, "job", job_id, null);
+    }
+
+    /**
+     * Starts a span on the current thread.
+     *
+     * @param name
+     * @param category
+     * @param job_id
+     * @param parent   null for a root span.
+     * @return {@link Span#NONE} if tracing is off.
+     */
+    public Span startSpan(final String name, final String category, final int job_id, final Span parent)
+    {
+        if (!enabled)
+        {
+            return Span.NONE;
+        }
+        return new Span(name, category, next_span_id.getAndIncrement(), parent == null ? 0 : parent.getSpanId(), job_id, Thread.currentThread().getId(), nowMicros());
+    }
+
+    long nowMicros()
+    {
+        return base_micros + (System.nanoTime() - base_nanos) / 1000;
+    }
+
+    void export(final Span span)
+    {
+        if (!queue.offer(span))
+        {
+            if (dropped.getAndIncrement() == 0)
+            {
+                Config.INSTANCE.logger.warn("Trace queue is full, dropping spans.");
+            }
+        }
+    }
+
+    /**
+     * @return number of spans dropped because the queue was full.
+     */
+    public long getDropped()
+    {
+        return dropped.get();
+    }
+
+    /**
+     * Waits until all queued spans are written.
+     *
+     * @param timeout milliseconds.
+     * @return true if the queue is empty.
+     * @throws InterruptedException
+     */
+    public boolean flush(final long timeout) throws InterruptedException
+    {
+        final long deadline = System.currentTimeMillis() + timeout;
+        while (!queue.isEmpty() || writing)
+        {
+            if (System.currentTimeMillis() >= deadline)
+            {
+                return false;
+            }
+            Thread.sleep(50);
+        }
+        return true;
+    }
+
+    private void writeSpans()
+    {
+        while (true)
+        {
+            try
+            {
+                Span span = queue.take();
+                writing = true;
+                while (span != null)
+                {
+                    if (span.isRoot())
+                    {
+                        // Names the job's row in trace viewers.
+                        final StringBuilder metadata = new StringBuilder();
+                        metadata.append("{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":").append(span.getJobId()).append(",\"args\":{\"name\":");
+                        Notification.appendJsonString(metadata, span.getName());
+                        metadata.append("}},\n");
+                        writer.write(metadata.toString());
+                    }
+                    writer.write(span.toJson());
+                    writer.write(",\n");
+                    span = queue.poll();
+                }
+                writer.flush();
+            }
+            catch (final InterruptedException e)
+            {
+                return;
+            }
+            catch (final IOException e)
+            {
+                Config.INSTANCE.logger.error("Unable to write to trace file: {}", Config.INSTANCE.trace_file);
+                Config.INSTANCE.logger.error(e.getMessage());
+            }
+            finally
+            {
+                writing = false;
+            }
+        }
+    }
+}
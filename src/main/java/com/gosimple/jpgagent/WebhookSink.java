@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Posts notifications to an http endpoint, as a JSON array with one object per notification.
+ */
+public class WebhookSink implements NotificationSink
+{
+    public static final String NAME = "webhook";
+    private static final int timeout = 10000;
+
+    private final URL url;
+
+    public WebhookSink(final URL url)
+    {
+        this.url = url;
+    }
+
+    @Override
+    public String getName()
+    {
+        return NAME;
+    }
+
+    @Override
+    public void send(final List<Notification> notifications) throws IOException
+    {
+        final StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < notifications.size(); i++)
+        {
+            if (i > 0)
+            {
+                json.append(',');
+            }
+            json.append(notifications.get(i).toJson());
+        }
+        final byte[] payload = json.append(']').toString().getBytes(StandardCharsets.UTF_8);
+
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try
+        {
+            connection.setConnectTimeout(timeout);
+            connection.setReadTimeout(timeout);
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(payload.length);
+            connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+            try (final OutputStream output_stream = connection.getOutputStream())
+            {
+                output_stream.write(payload);
+            }
+            final int response_code = connection.getResponseCode();
+            if (response_code < 200 || response_code >= 300)
+            {
+                throw new IOException("Webhook " + url + " responded with " + response_code + ".");
+            }
+            // Read the response fully so the connection can be reused.
+            try (final InputStream input_stream = connection.getInputStream())
+            {
+                final byte[] buffer = new byte[1024];
+                while (input_stream.read(buffer) != -1)
+                {
+                }
+            }
+        }
+        catch (final IOException e)
+        {
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    @Override
+    public void idle()
+    {
+    }
+}
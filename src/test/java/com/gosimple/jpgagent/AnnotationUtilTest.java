@@ -97,6 +97,7 @@ public class AnnotationUtilTest
         final String test_9 = " bob";
 
         Assert.assertEquals(AnnotationUtil.parseValue(Job.JobAnnotations.JOB_TIMEOUT, test_1, Long.class), new Long(42 * 60 * 1000));
+        Assert.assertEquals(AnnotationUtil.parseValue(Job.JobAnnotations.LOG_RETENTION_AGE, "30 d", Long.class), new Long(30L * 24 * 60 * 60 * 1000));
         Assert.assertNull(AnnotationUtil.parseValue(Job.JobAnnotations.JOB_TIMEOUT, test_1, Double.class));
         Assert.assertNull(AnnotationUtil.parseValue(Job.JobAnnotations.JOB_TIMEOUT, test_2, Long.class));
         Assert.assertNull(AnnotationUtil.parseValue(Job.JobAnnotations.JOB_TIMEOUT, test_3, Long.class));
@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BackoffTest
+{
+
+    @Test
+    public void testGrowth() throws Exception
+    {
+        final Backoff backoff = new Backoff(10, 100);
+
+        Assert.assertEquals(10, backoff.nextWait(1.0));
+        Assert.assertEquals(20, backoff.nextWait(1.0));
+        Assert.assertEquals(40, backoff.nextWait(1.0));
+        Assert.assertEquals(80, backoff.nextWait(1.0));
+        Assert.assertEquals(100, backoff.nextWait(1.0));
+        Assert.assertEquals(100, backoff.nextWait(1.0));
+        Assert.assertEquals(6, backoff.getAttempts());
+
+        backoff.reset();
+        Assert.assertEquals(10, backoff.nextWait(1.0));
+    }
+
+    @Test
+    public void testJitter() throws Exception
+    {
+        final Backoff backoff = new Backoff(10, 100);
+        for (int i = 0; i < 10; i++)
+        {
+            backoff.nextWait();
+        }
+        // Capped at the maximum, the wait is between half of it and all of it.
+        Assert.assertEquals(50, backoff.nextWait(0.0));
+        for (int i = 0; i < 100; i++)
+        {
+            final long wait = backoff.nextWait();
+            Assert.assertTrue(wait >= 50 && wait <= 100);
+        }
+    }
+}
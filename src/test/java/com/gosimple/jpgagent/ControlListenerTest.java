@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ControlListenerTest
+{
+    private final String hostname = Config.INSTANCE.hostname;
+
+    @After
+    public void tearDown() throws Exception
+    {
+        Config.INSTANCE.hostname = hostname;
+        Database.INSTANCE.setMainConnection(null, 0);
+    }
+
+    @Test
+    public void testIsTarget() throws Exception
+    {
+        Config.INSTANCE.hostname = "agent-1.example.com";
+        Database.INSTANCE.setMainConnection(null, 4242);
+
+        // No payload applies to every agent.
+        Assert.assertTrue(ControlListener.INSTANCE.isTarget(""));
+        Assert.assertTrue(ControlListener.INSTANCE.isTarget("agent-1.example.com"));
+        Assert.assertTrue(ControlListener.INSTANCE.isTarget("AGENT-1.example.com"));
+        Assert.assertTrue(ControlListener.INSTANCE.isTarget("4242"));
+
+        Assert.assertFalse(ControlListener.INSTANCE.isTarget("agent-2.example.com"));
+        Assert.assertFalse(ControlListener.INSTANCE.isTarget("agent-1"));
+        Assert.assertFalse(ControlListener.INSTANCE.isTarget("4243"));
+        Assert.assertFalse(ControlListener.INSTANCE.isTarget("42"));
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.gosimple.jpgagent;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+
+public class DatabaseTest
+{
+
+    @Test
+    public void testParseHosts() throws Exception
+    {
+        final List<InetSocketAddress> hosts = Database.parseHosts(" replica1 ,replica2:5433,  10.0.0.3 : 6432 ,", 5432);
+
+        Assert.assertEquals(3, hosts.size());
+        Assert.assertEquals("replica1", hosts.get(0).getHostString());
+        Assert.assertEquals(5432, hosts.get(0).getPort());
+        Assert.assertEquals("replica2", hosts.get(1).getHostString());
+        Assert.assertEquals(5433, hosts.get(1).getPort());
+        Assert.assertEquals("10.0.0.3", hosts.get(2).getHostString());
+        Assert.assertEquals(6432, hosts.get(2).getPort());
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void testParseHostsBadPort() throws Exception
+    {
+        Database.parseHosts("replica1:abc", 5432);
+    }
+}
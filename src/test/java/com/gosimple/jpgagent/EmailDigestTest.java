@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+public class EmailDigestTest
+{
+
+    @Test
+    public void testImmediateLimit() throws Exception
+    {
+        final EmailDigest email_digest = new EmailDigest(1000, 1);
+        final String[] to = {"a@example.com", "b@example.com"};
+
+        Assert.assertArrayEquals(to, email_digest.submit(to, "one", "body one", 0));
+        Assert.assertEquals(0, email_digest.submit(new String[]{"b@example.com"}, "two", "body two", 100).length);
+        Assert.assertEquals(0, email_digest.submit(to, "three", "body three", 200).length);
+
+        // Nothing is due until the window ends.
+        Assert.assertTrue(email_digest.takeDue(999).isEmpty());
+
+        final List<EmailDigest.Digest> digests = email_digest.takeDue(1000);
+        Assert.assertEquals(2, digests.size());
+        for (EmailDigest.Digest digest : digests)
+        {
+            if (digest.getRecipient().equals("a@example.com"))
+            {
+                Assert.assertEquals(1, digest.getCount());
+                Assert.assertTrue(digest.getBody().contains("body three"));
+            }
+            else
+            {
+                Assert.assertEquals(2, digest.getCount());
+                Assert.assertTrue(digest.getBody().contains("body two"));
+                Assert.assertTrue(digest.getBody().contains("body three"));
+            }
+        }
+
+        // A new window starts after the digest is sent.
+        Assert.assertArrayEquals(to, email_digest.submit(to, "four", "body four", 1100));
+        Assert.assertTrue(email_digest.takeDue(2100).isEmpty());
+    }
+
+    @Test
+    public void testTakeAll() throws Exception
+    {
+        final EmailDigest email_digest = new EmailDigest(Long.MAX_VALUE, 0);
+        Assert.assertEquals(0, email_digest.submit(new String[]{"a@example.com"}, "one", "body one").length);
+
+        // Held email is returned even though its window isn't over.
+        final List<EmailDigest.Digest> digests = email_digest.takeAll();
+        Assert.assertEquals(1, digests.size());
+        Assert.assertEquals(1, digests.get(0).getCount());
+        Assert.assertTrue(email_digest.takeAll().isEmpty());
+    }
+}
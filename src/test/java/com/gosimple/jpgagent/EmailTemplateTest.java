@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class EmailTemplateTest
+{
+
+    @Test
+    public void testRender() throws Exception
+    {
+        final EmailTemplate email_template = EmailTemplate.compile("Job ~job_name~ on ~host~: ~status~ (~job_name~)");
+        final Map<String, String> values = new HashMap<>();
+        values.put("~job_name~", "nightly");
+        values.put("~status~", "FAIL");
+        values.put("~host~", "db1");
+
+        Assert.assertEquals("Job nightly on db1: FAIL (nightly)", email_template.render(values));
+        Assert.assertSame(email_template, EmailTemplate.compile("Job ~job_name~ on ~host~: ~status~ (~job_name~)"));
+    }
+
+    @Test
+    public void testSpecialCharacters() throws Exception
+    {
+        final EmailTemplate email_template = EmailTemplate.compile("~job_step_name~ cost $1 \\ ~output~");
+        final Map<String, String> values = new HashMap<>();
+        values.put("~job_step_name~", "copy $0 to C:\\data\\$1");
+        values.put("~output~", "\\1 $2");
+
+        Assert.assertEquals("copy $0 to C:\\data\\$1 cost $1 \\ \\1 $2", email_template.render(values));
+    }
+
+    @Test
+    public void testRenderHtml() throws Exception
+    {
+        final EmailTemplate email_template = EmailTemplate.compile("<p>~job_name~</p><pre>~output~</pre>");
+        final Map<String, String> values = new HashMap<>();
+        values.put("~job_name~", "a & b");
+        values.put("~output~", "<script>alert('x')</script> \"done\"");
+
+        Assert.assertEquals("<p>a &amp; b</p><pre>&lt;script&gt;alert(&#39;x&#39;)&lt;/script&gt; &quot;done&quot;</pre>", email_template.renderHtml(values));
+        Assert.assertEquals("<p>a & b</p><pre><script>alert('x')</script> \"done\"</pre>", email_template.render(values));
+    }
+
+    @Test
+    public void testMissingValues() throws Exception
+    {
+        final EmailTemplate email_template = EmailTemplate.compile("~status~ ~job_step_name~ ~unknown~ ~");
+        final Map<String, String> values = new HashMap<>();
+        values.put("~status~", null);
+
+        Assert.assertEquals(" ~job_step_name~ ~unknown~ ~", email_template.render(values));
+        Assert.assertEquals("", EmailTemplate.compile(null).render(values));
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HistogramTest
+{
+
+    @Test
+    public void testBuckets() throws Exception
+    {
+        for (long value = 0; value < 100000; value++)
+        {
+            final int index = Histogram.getIndex(value);
+            Assert.assertTrue(value <= Histogram.getUpperBound(index));
+            Assert.assertTrue(index == 0 || value > Histogram.getUpperBound(index - 1));
+            // Within 12.5% of the bucket's upper bound.
+            Assert.assertTrue(Histogram.getUpperBound(index) - value <= value / 8);
+        }
+        Assert.assertEquals(Long.MAX_VALUE, Histogram.getUpperBound(Histogram.getIndex(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void testPercentiles() throws Exception
+    {
+        final Histogram histogram = new Histogram();
+        Assert.assertEquals(0, histogram.getPercentile(99));
+        for (long value = 1; value <= 1000; value++)
+        {
+            histogram.record(value);
+        }
+
+        Assert.assertEquals(1000, histogram.getCount());
+        Assert.assertEquals(500500, histogram.getSum());
+        Assert.assertEquals(1, histogram.getPercentile(0));
+        Assert.assertEquals(Histogram.getUpperBound(Histogram.getIndex(500)), histogram.getPercentile(50));
+        Assert.assertEquals(Histogram.getUpperBound(Histogram.getIndex(990)), histogram.getPercentile(99));
+        Assert.assertEquals(Histogram.getUpperBound(Histogram.getIndex(1000)), histogram.getPercentile(100));
+        Assert.assertEquals(511, histogram.getCountBelowPowerOfTwo(9));
+        Assert.assertEquals(1000, histogram.getCountBelowPowerOfTwo(63));
+    }
+
+    @Test
+    public void testPowerOfTwoBoundaries() throws Exception
+    {
+        final Histogram histogram = new Histogram();
+        histogram.record(1);
+        histogram.record(4);
+        histogram.record(16);
+
+        Assert.assertEquals(0, histogram.getCountBelowPowerOfTwo(0));
+        Assert.assertEquals(1, histogram.getCountBelowPowerOfTwo(2));
+        Assert.assertEquals(1, histogram.getCountBelowPowerOfTwo(1));
+        Assert.assertEquals(2, histogram.getCountBelowPowerOfTwo(3));
+        Assert.assertEquals(2, histogram.getCountBelowPowerOfTwo(4));
+        Assert.assertEquals(3, histogram.getCountBelowPowerOfTwo(5));
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class JobRegistryTest
+{
+    // Released to let the tasks holding the pool's threads finish
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    /**
+     * Task which counts how it was run or cancelled, and runs until released.
+     */
+    private class CountingTask implements CancellableRunnable
+    {
+        final AtomicInteger runs = new AtomicInteger();
+        final AtomicInteger cancels = new AtomicInteger();
+        final AtomicInteger cancels_before_start = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+
+        @Override
+        public void run()
+        {
+            runs.incrementAndGet();
+            started.countDown();
+            try
+            {
+                release.await();
+            }
+            catch (final InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void cancelTask()
+        {
+            cancels.incrementAndGet();
+        }
+
+        @Override
+        public void cancelledBeforeStart()
+        {
+            cancels_before_start.incrementAndGet();
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        release.countDown();
+    }
+
+    @Test
+    public void testKillQueuedJob() throws Exception
+    {
+        // Hold every thread of the pool, so the job waits in the queue.
+        final CountingTask[] blockers = new CountingTask[Config.INSTANCE.thread_pool_size];
+        for (int i = 0; i < blockers.length; i++)
+        {
+            blockers[i] = new CountingTask();
+            JobRegistry.INSTANCE.submitStep(0, 1000 + i, "blocker", blockers[i]);
+        }
+        for (CountingTask blocker : blockers)
+        {
+            Assert.assertTrue(blocker.started.await(5, TimeUnit.SECONDS));
+        }
+
+        final CountingTask queued = new CountingTask();
+        final Future<?> future = JobRegistry.INSTANCE.submitJob(1, "queued", queued);
+        Assert.assertEquals(1, JobRegistry.INSTANCE.getJobCount());
+
+        Assert.assertTrue(JobRegistry.INSTANCE.killJob(1));
+        Assert.assertTrue(future.isCancelled());
+        Assert.assertEquals(1, queued.cancels.get());
+        Assert.assertEquals(1, queued.cancels_before_start.get());
+        Assert.assertEquals(0, JobRegistry.INSTANCE.getJobCount());
+        Assert.assertFalse(JobRegistry.INSTANCE.killJob(1));
+
+        release.countDown();
+        for (CountingTask blocker : blockers)
+        {
+            Assert.assertEquals(0, blocker.cancels_before_start.get());
+        }
+        Assert.assertEquals(0, queued.runs.get());
+    }
+
+    @Test
+    public void testKillRunningJob() throws Exception
+    {
+        final CountingTask running = new CountingTask();
+        final Future<?> future = JobRegistry.INSTANCE.submitJob(2, "running", running);
+        Assert.assertTrue(running.started.await(5, TimeUnit.SECONDS));
+
+        Assert.assertTrue(JobRegistry.INSTANCE.killJob(2));
+        Assert.assertTrue(future.isCancelled());
+        Assert.assertEquals(1, running.cancels.get());
+        // It started, so it cleans up after itself.
+        Assert.assertEquals(0, running.cancels_before_start.get());
+
+        release.countDown();
+        for (int i = 0; i < 100 && JobRegistry.INSTANCE.getJobCount() > 0; i++)
+        {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(0, JobRegistry.INSTANCE.getJobCount());
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.MDC;
+
+public class JsonLogLayoutTest
+{
+
+    @Test
+    public void testLayout() throws Exception
+    {
+        final LoggerContext context = new LoggerContext();
+        MDC.put("job_id", "12");
+        MDC.put("step_id", "34");
+        try
+        {
+            final LoggingEvent event = new LoggingEvent(getClass().getName(), context.getLogger("jpgAgent"), Level.INFO, "Job id: {} \"started\".", null, new Object[]{12});
+            event.setTimeStamp(0);
+            final String json = new JsonLogLayout().doLayout(event);
+            Assert.assertTrue(json.startsWith("{\"time\":\"1970-01-01T00:00:00.000Z\",\"level\":\"INFO\",\"thread\":"));
+            Assert.assertTrue(json.contains(",\"logger\":\"jpgAgent\",\"message\":\"Job id: 12 \\\"started\\\".\""));
+            Assert.assertTrue(json.contains(",\"job_id\":\"12\""));
+            Assert.assertTrue(json.contains(",\"step_id\":\"34\""));
+            Assert.assertFalse(json.contains("exception"));
+            Assert.assertTrue(json.endsWith("}" + System.getProperty("line.separator")));
+        }
+        finally
+        {
+            MDC.clear();
+        }
+    }
+}
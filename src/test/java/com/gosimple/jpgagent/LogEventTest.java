@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LogEventTest
+{
+
+    private static void assertRoundTrip(final LogEvent event) throws Exception
+    {
+        final byte[] bytes = event.toBytes();
+        final LogEvent read_event = LogEvent.fromBytes(bytes);
+
+        Assert.assertArrayEquals(bytes, read_event.toBytes());
+        Assert.assertEquals(event.toString(), read_event.toString());
+        Assert.assertEquals(event.getJobId(), read_event.getJobId());
+        Assert.assertEquals(event.getJobStepId(), read_event.getJobStepId());
+        Assert.assertEquals(event.getStatus(), read_event.getStatus());
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        assertRoundTrip(LogEvent.jobLogFinish(1, 11, "s", 1500));
+        assertRoundTrip(LogEvent.jobStepLogFinish(1, 11, 2, 21, "f", -1, "line 1\nline 2 \u00e9\u4e2d", 250));
+        // Null strings are kept apart from empty ones, they would be written back differently otherwise.
+        assertRoundTrip(LogEvent.jobStepLogFinish(1, 11, 2, 0, "s", 0, null, 0));
+        assertRoundTrip(LogEvent.jobStepLogFinish(1, 11, 2, 0, "s", 0, "", 0));
+        assertRoundTrip(LogEvent.jobRelease(1, 4242));
+        assertRoundTrip(LogEvent.jobRunStats(1, 11, 1700000000000L, 120, 20, 1620));
+    }
+}
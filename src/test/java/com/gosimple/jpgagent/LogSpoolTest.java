@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+public class LogSpoolTest
+{
+
+    @After
+    public void tearDown() throws Exception
+    {
+        Database.INSTANCE.setMainConnection(null, 0);
+    }
+
+    @Test
+    public void testReplay() throws Exception
+    {
+        // A journal left over by a previous run, with the first event already written to the database.
+        final LogEvent[] events = {
+                LogEvent.jobLogFinish(1, 11, "s", 100),
+                LogEvent.jobStepLogFinish(2, 12, 3, 13, "f", 1, "output", 200),
+                LogEvent.jobRelease(2, 4242)
+        };
+        final File spool_file = File.createTempFile("jpgagent", ".spool");
+        spool_file.deleteOnExit();
+        try (final RandomAccessFile journal = new RandomAccessFile(spool_file, "rw"))
+        {
+            journal.seek(16);
+            long applied_position = 0;
+            for (LogEvent event : events)
+            {
+                final byte[] bytes = event.toBytes();
+                journal.writeInt(bytes.length);
+                journal.write(bytes);
+                if (applied_position == 0)
+                {
+                    applied_position = journal.getFilePointer();
+                }
+            }
+            final long write_position = journal.getFilePointer();
+            journal.seek(0);
+            journal.writeLong(write_position);
+            journal.writeLong(applied_position);
+        }
+
+        final StubConnection stub_connection = new StubConnection(new StubConnection.Handler()
+        {
+            @Override
+            public Object handle(final String sql, final List<Object> parameters)
+            {
+                return null;
+            }
+        });
+        Database.INSTANCE.setMainConnection(stub_connection.getConnection(), 4242);
+        Config.INSTANCE.spool_file = spool_file.getAbsolutePath();
+        Config.INSTANCE.spool_size = 4096;
+        LogSpool.INSTANCE.start();
+
+        Assert.assertTrue(LogSpool.INSTANCE.flush(5000));
+        List<String> executed = stub_connection.getExecuted();
+        Assert.assertEquals(2, executed.size());
+        Assert.assertTrue(executed.get(0).startsWith("UPDATE pgagent.pga_jobsteplog"));
+        Assert.assertTrue(executed.get(0).endsWith("[200, f, 1, output, 13]"));
+        Assert.assertTrue(executed.get(1).startsWith("UPDATE pgagent.pga_job "));
+        Assert.assertTrue(executed.get(1).endsWith("[2, 4242]"));
+
+        // New events are written after the replayed ones.
+        LogSpool.INSTANCE.submit(LogEvent.jobLogFinish(4, 14, "d", 300));
+        Assert.assertTrue(LogSpool.INSTANCE.flush(5000));
+        executed = stub_connection.getExecuted();
+        Assert.assertEquals(3, executed.size());
+        Assert.assertTrue(executed.get(2).startsWith("UPDATE pgagent.pga_joblog"));
+        Assert.assertTrue(executed.get(2).endsWith("[d, 300, 14]"));
+        Assert.assertEquals(0, LogSpool.INSTANCE.getPendingBytes());
+    }
+}
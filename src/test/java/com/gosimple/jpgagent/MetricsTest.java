@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MetricsTest
+{
+
+    @Test
+    public void testRender() throws Exception
+    {
+        Metrics.INSTANCE.histogram("test_duration_seconds", "Test.", 1000.0, "type", "a\"b").record(3);
+        Metrics.INSTANCE.counter("test_total", "Test.").add(2);
+        Metrics.INSTANCE.gauge("test_gauge", "Test.", new Metrics.Gauge()
+        {
+            @Override
+            public double get()
+            {
+                return 1.5;
+            }
+        });
+
+        final String text = Metrics.INSTANCE.render();
+        Assert.assertTrue(text.contains("# TYPE test_duration_seconds histogram\n"));
+        Assert.assertTrue(text.contains("test_duration_seconds_bucket{type=\"a\\\"b\",le=\"0\"} 0\n"));
+        Assert.assertTrue(text.contains("test_duration_seconds_bucket{type=\"a\\\"b\",le=\"0.003\"} 1\n"));
+        Assert.assertTrue(text.contains("test_duration_seconds_bucket{type=\"a\\\"b\",le=\"+Inf\"} 1\n"));
+        Assert.assertTrue(text.contains("test_duration_seconds_sum{type=\"a\\\"b\"} 0.003\n"));
+        Assert.assertTrue(text.contains("test_duration_seconds_count{type=\"a\\\"b\"} 1\n"));
+        Assert.assertTrue(text.contains("test_total 2\n"));
+        Assert.assertTrue(text.contains("test_gauge 1.5\n"));
+    }
+
+    @Test
+    public void testBucketBoundaries() throws Exception
+    {
+        final Histogram histogram = Metrics.INSTANCE.histogram("test_boundary", "Test.", 1);
+        histogram.record(1);
+        histogram.record(4);
+        histogram.record(16);
+
+        // Each value is counted in every bucket whose le it is less than or equal to.
+        final String text = Metrics.INSTANCE.render();
+        Assert.assertTrue(text.contains("test_boundary_bucket{le=\"0\"} 0\n"));
+        Assert.assertTrue(text.contains("test_boundary_bucket{le=\"3\"} 1\n"));
+        Assert.assertTrue(text.contains("test_boundary_bucket{le=\"15\"} 2\n"));
+        Assert.assertTrue(text.contains("test_boundary_bucket{le=\"63\"} 3\n"));
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class MutexManagerTest
+{
+    // Keys locked by other agents
+    private final Set<String> locked_elsewhere = new HashSet<>();
+    // Keys locked by the current main connection
+    private final Set<String> locked_here = new HashSet<>();
+
+    private void connect(final int pid)
+    {
+        locked_here.clear();
+        final StubConnection stub_connection = new StubConnection(new StubConnection.Handler()
+        {
+            @Override
+            public Object handle(final String sql, final List<Object> parameters)
+            {
+                final String key = (String) parameters.get(1);
+                if (sql.contains("pg_try_advisory_lock"))
+                {
+                    return !locked_elsewhere.contains(key) && locked_here.add(key);
+                }
+                if (sql.contains("pg_advisory_unlock"))
+                {
+                    return locked_here.remove(key);
+                }
+                return null;
+            }
+        });
+        Database.INSTANCE.setMainConnection(stub_connection.getConnection(), pid);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        MutexManager.INSTANCE.releaseAll();
+        Database.INSTANCE.setMainConnection(null, 0);
+    }
+
+    @Test
+    public void testAcquireRelease() throws Exception
+    {
+        connect(1001);
+
+        Assert.assertTrue(MutexManager.INSTANCE.tryAcquire(new String[]{"a", "b"}, 1));
+        Assert.assertTrue(MutexManager.INSTANCE.isHeld("a"));
+        Assert.assertTrue(MutexManager.INSTANCE.isHeld("b"));
+        Assert.assertTrue(locked_here.contains("a"));
+
+        // All or nothing, c is given back as b is taken.
+        Assert.assertFalse(MutexManager.INSTANCE.tryAcquire(new String[]{"c", "b"}, 2));
+        Assert.assertFalse(MutexManager.INSTANCE.isHeld("c"));
+        Assert.assertFalse(locked_here.contains("c"));
+
+        // Keys are only released by the job holding them.
+        MutexManager.INSTANCE.release(new String[]{"a"}, 2);
+        Assert.assertTrue(MutexManager.INSTANCE.isHeld("a"));
+
+        MutexManager.INSTANCE.release(new String[]{"a", "b"}, 1);
+        Assert.assertFalse(MutexManager.INSTANCE.isHeld("a"));
+        Assert.assertFalse(MutexManager.INSTANCE.isHeld("b"));
+        Assert.assertTrue(locked_here.isEmpty());
+
+        Assert.assertTrue(MutexManager.INSTANCE.tryAcquire(new String[]{"b"}, 2));
+    }
+
+    @Test
+    public void testHeldElsewhere() throws Exception
+    {
+        connect(1001);
+        locked_elsewhere.add("a");
+
+        Assert.assertFalse(MutexManager.INSTANCE.tryAcquire(new String[]{"a"}, 1));
+        Assert.assertFalse(MutexManager.INSTANCE.isHeld("a"));
+        Assert.assertTrue(MutexManager.INSTANCE.tryAcquire(null, 1));
+    }
+
+    @Test
+    public void testReacquire() throws Exception
+    {
+        connect(1001);
+        Assert.assertTrue(MutexManager.INSTANCE.tryAcquire(new String[]{"a"}, 1));
+        Assert.assertTrue(MutexManager.INSTANCE.tryAcquire(new String[]{"b"}, 2));
+
+        // The locks went with the old connection, and another agent took a in the meantime.
+        connect(1002);
+        locked_elsewhere.add("a");
+        MutexManager.INSTANCE.reacquire();
+
+        Assert.assertFalse(MutexManager.INSTANCE.isHeld("a"));
+        Assert.assertTrue(MutexManager.INSTANCE.isHeld("b"));
+        Assert.assertTrue(locked_here.contains("b"));
+    }
+}
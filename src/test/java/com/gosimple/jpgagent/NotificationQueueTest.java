@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.gosimple.jpgagent;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class NotificationQueueTest
+{
+
+    @Test
+    public void testFlushWaitsForDelivery() throws Exception
+    {
+        final AtomicInteger delivered = new AtomicInteger();
+        final NotificationQueue queue = new NotificationQueue(new NotificationSink()
+        {
+            @Override
+            public String getName()
+            {
+                return "slow";
+            }
+
+            @Override
+            public void send(final List<Notification> notifications) throws Exception
+            {
+                Thread.sleep(200);
+                delivered.addAndGet(notifications.size());
+                notifications.clear();
+            }
+
+            @Override
+            public void idle()
+            {
+            }
+        });
+
+        for (int i = 0; i < 3; i++)
+        {
+            queue.send(new Notification(null, "subject " + i, "body", null));
+            // Flushing while a notification is taken but not yet delivered must still wait for it.
+            Assert.assertTrue(queue.flush(5000));
+            Assert.assertEquals(i + 1, delivered.get());
+        }
+        Assert.assertEquals(3, queue.getSent());
+        Assert.assertEquals(0, queue.getQueued());
+    }
+}
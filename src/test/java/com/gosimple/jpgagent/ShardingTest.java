@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class ShardingTest
+{
+
+    @Test
+    public void testSelectOwnerWeighted() throws Exception
+    {
+        final Map<Integer, Integer> agents = new HashMap<>();
+        agents.put(1001, 10);
+        agents.put(1002, 10);
+        agents.put(1003, 20);
+
+        final Map<Integer, Integer> owned = new HashMap<>();
+        for (int job_id = 1; job_id <= 40000; job_id++)
+        {
+            owned.merge(Sharding.selectOwner(job_id, agents), 1, Integer::sum);
+        }
+
+        Assert.assertEquals(10000, owned.get(1001), 500);
+        Assert.assertEquals(10000, owned.get(1002), 500);
+        Assert.assertEquals(20000, owned.get(1003), 500);
+    }
+
+    @Test
+    public void testSelectOwnerRebalance() throws Exception
+    {
+        final Map<Integer, Integer> agents = new HashMap<>();
+        agents.put(1001, 10);
+        agents.put(1002, 10);
+        agents.put(1003, 10);
+
+        final Map<Integer, Integer> remaining_agents = new HashMap<>(agents);
+        remaining_agents.remove(1003);
+
+        for (int job_id = 1; job_id <= 10000; job_id++)
+        {
+            final int owner = Sharding.selectOwner(job_id, agents);
+            Assert.assertEquals(owner, Sharding.selectOwner(job_id, agents));
+            // Only the jobs of the agent which left should move.
+            if (owner != 1003)
+            {
+                Assert.assertEquals(owner, Sharding.selectOwner(job_id, remaining_agents));
+            }
+        }
+    }
+}
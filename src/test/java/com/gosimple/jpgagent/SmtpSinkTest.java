@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.gosimple.jpgagent;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class SmtpSinkTest
+{
+
+    @Test
+    public void testInvalidAddressRejected() throws Exception
+    {
+        Config.INSTANCE.smtp_host = "127.0.0.1";
+        Config.INSTANCE.smtp_email = "agent@example.com";
+        final Notification invalid = new Notification(new String[]{"not an address@"}, "invalid", "body", null);
+        final List<Notification> notifications = new ArrayList<>();
+        notifications.add(invalid);
+
+        // Nothing is thrown, so the batch isn't retried.
+        new SmtpSink().send(notifications);
+
+        Assert.assertTrue(notifications.isEmpty());
+        Assert.assertTrue(invalid.isRejected());
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Stands in for a database connection in tests.  Every statement run is recorded with its parameters, and
+ * queries return a single row whose first column is the answer of the handler.
+ */
+class StubConnection
+{
+    /**
+     * Answers the statements run on the connection.
+     */
+    interface Handler
+    {
+        /**
+         * @param sql
+         * @param parameters
+         * @return the value of the single row a query returns, ignored for other statements.
+         */
+        Object handle(String sql, List<Object> parameters);
+    }
+
+    private final Handler handler;
+    private final List<String> executed = Collections.synchronizedList(new ArrayList<String>());
+    private final Connection connection;
+
+    StubConnection(final Handler handler)
+    {
+        this.handler = handler;
+        this.connection = (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Connection.class}, new InvocationHandler()
+        {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args)
+            {
+                switch (method.getName())
+                {
+                    case "prepareStatement":
+                        return createStatement((String) args[0]);
+                    case "createStatement":
+                        return createStatement(null);
+                    case "isValid":
+                        return true;
+                    default:
+                        return defaultValue(method.getReturnType());
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the connection.
+     */
+    Connection getConnection()
+    {
+        return connection;
+    }
+
+    /**
+     * @return the statements run, in order, each followed by its parameters.
+     */
+    List<String> getExecuted()
+    {
+        synchronized (executed)
+        {
+            return new ArrayList<>(executed);
+        }
+    }
+
+    private Statement createStatement(final String prepared_sql)
+    {
+        final List<Object> parameters = new ArrayList<>();
+        final Class<?> statement_class = prepared_sql == null ? Statement.class : PreparedStatement.class;
+        return (Statement) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{statement_class}, new InvocationHandler()
+        {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args)
+            {
+                final String name = method.getName();
+                if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer)
+                {
+                    final int index = (Integer) args[0];
+                    while (parameters.size() < index)
+                    {
+                        parameters.add(null);
+                    }
+                    parameters.set(index - 1, name.equals("setNull") ? null : args[1]);
+                    return null;
+                }
+                if (name.equals("execute") || name.equals("executeUpdate") || name.equals("executeQuery"))
+                {
+                    final String sql = prepared_sql == null ? (String) args[0] : prepared_sql;
+                    executed.add(sql + " " + parameters);
+                    final Object value = handler.handle(sql, new ArrayList<>(parameters));
+                    switch (name)
+                    {
+                        case "executeQuery":
+                            return createResultSet(value);
+                        case "executeUpdate":
+                            return 1;
+                        default:
+                            return false;
+                    }
+                }
+                return defaultValue(method.getReturnType());
+            }
+        });
+    }
+
+    private ResultSet createResultSet(final Object value)
+    {
+        return (ResultSet) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{ResultSet.class}, new InvocationHandler()
+        {
+            private boolean returned = false;
+
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args)
+            {
+                switch (method.getName())
+                {
+                    case "next":
+                        final boolean has_row = !returned && value != null;
+                        returned = true;
+                        return has_row;
+                    case "getObject":
+                    case "getBoolean":
+                    case "getInt":
+                    case "getString":
+                        return value;
+                    default:
+                        return defaultValue(method.getReturnType());
+                }
+            }
+        });
+    }
+
+    private static Object defaultValue(final Class<?> type)
+    {
+        if (type == boolean.class)
+        {
+            return false;
+        }
+        if (type == int.class)
+        {
+            return 0;
+        }
+        if (type == long.class)
+        {
+            return 0L;
+        }
+        return null;
+    }
+}
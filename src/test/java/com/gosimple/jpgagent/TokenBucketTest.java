@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class TokenBucketTest
+{
+
+    @Test
+    public void testBurst() throws Exception
+    {
+        final TokenBucket bucket = new TokenBucket(1, 3);
+        final long now = System.nanoTime();
+
+        Assert.assertEquals(3, bucket.getPermits(now));
+        Assert.assertTrue(bucket.tryAcquire(now));
+        Assert.assertTrue(bucket.tryAcquire(now));
+        Assert.assertTrue(bucket.tryAcquire(now));
+        Assert.assertFalse(bucket.tryAcquire(now));
+        Assert.assertFalse(bucket.hasPermit(now));
+    }
+
+    @Test
+    public void testRefill() throws Exception
+    {
+        final TokenBucket bucket = new TokenBucket(4, 2);
+        final long now = System.nanoTime();
+
+        Assert.assertTrue(bucket.tryAcquire(now));
+        Assert.assertTrue(bucket.tryAcquire(now));
+        Assert.assertEquals(250, bucket.getWaitMillis(now));
+        Assert.assertFalse(bucket.tryAcquire(now + TimeUnit.MILLISECONDS.toNanos(200)));
+        Assert.assertTrue(bucket.tryAcquire(now + TimeUnit.MILLISECONDS.toNanos(250)));
+        // Never refills past capacity.
+        Assert.assertEquals(2, bucket.getPermits(now + TimeUnit.SECONDS.toNanos(60)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidRate() throws Exception
+    {
+        new TokenBucket(0, 1);
+    }
+}
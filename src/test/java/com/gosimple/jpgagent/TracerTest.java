@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+public class TracerTest
+{
+
+    @Test
+    public void testSpans() throws Exception
+    {
+        final File trace_file = File.createTempFile("jpgagent", ".trace.json");
+        trace_file.deleteOnExit();
+        Config.INSTANCE.trace_file = trace_file.getAbsolutePath();
+        Tracer.INSTANCE.start();
+
+        final Span job_span = Tracer.INSTANCE.startJobSpan(42);
+        final Span step_span = Tracer.INSTANCE.startSpan("step 7", "step", 42, job_span);
+        step_span.child("execute").arg("sql", "SELECT \"x\"").end();
+        step_span.end();
+        // Ending twice is ignored.
+        step_span.end();
+        job_span.arg("status", "SUCCEED").end();
+        Assert.assertTrue(Tracer.INSTANCE.flush(5000));
+
+        final String trace = new String(Files.readAllBytes(trace_file.toPath()), StandardCharsets.UTF_8);
+        Assert.assertTrue(trace.startsWith("[\n"));
+        Assert.assertEquals(1, count(trace, "\"name\":\"process_name\",\"ph\":\"M\",\"pid\":42,\"args\":{\"name\":\"job 42\"}"));
+        Assert.assertEquals(1, count(trace, "\"name\":\"step 7\",\"cat\":\"step\",\"ph\":\"X\""));
+        Assert.assertEquals(1, count(trace, "\"parent_id\":" + job_span.getSpanId() + "}"));
+        Assert.assertEquals(1, count(trace, "\"parent_id\":" + step_span.getSpanId() + ",\"sql\":\"SELECT \\\"x\\\"\"}"));
+        Assert.assertEquals(1, count(trace, "\"status\":\"SUCCEED\""));
+        Assert.assertEquals(Span.NONE, Span.NONE.child("phase"));
+    }
+
+    private static int count(final String string, final String substring)
+    {
+        int count = 0;
+        for (int index = string.indexOf(substring); index >= 0; index = string.indexOf(substring, index + 1))
+        {
+            count++;
+        }
+        return count;
+    }
+}
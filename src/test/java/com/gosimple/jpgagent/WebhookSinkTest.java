@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class WebhookSinkTest
+{
+    private HttpServer server;
+    private final List<String> requests = new ArrayList<>();
+    private volatile int response_code = 200;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/hook", new HttpHandler()
+        {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException
+            {
+                final ByteArrayOutputStream body = new ByteArrayOutputStream();
+                try (final InputStream input_stream = exchange.getRequestBody())
+                {
+                    final byte[] buffer = new byte[1024];
+                    int read;
+                    while ((read = input_stream.read(buffer)) != -1)
+                    {
+                        body.write(buffer, 0, read);
+                    }
+                }
+                synchronized (requests)
+                {
+                    requests.add(new String(body.toByteArray(), StandardCharsets.UTF_8));
+                }
+                exchange.sendResponseHeaders(response_code, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        server.stop(0);
+    }
+
+    private URL getUrl() throws Exception
+    {
+        return new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/hook");
+    }
+
+    @Test
+    public void testSendBatch() throws Exception
+    {
+        final Map<String, String> values = new HashMap<>();
+        values.put("~status~", "FAIL");
+        values.put("~job_name~", "say \"hi\"\n");
+        final List<Notification> notifications = new ArrayList<>();
+        notifications.add(new Notification(null, "first", "body", values));
+        notifications.add(new Notification(new String[]{"a@example.com"}, "second", "body", null));
+
+        new WebhookSink(getUrl()).send(notifications);
+
+        Assert.assertEquals(1, requests.size());
+        final String request = requests.get(0);
+        Assert.assertTrue(request.startsWith("[{") && request.endsWith("}]"));
+        Assert.assertTrue(request.contains("\"subject\":\"first\""));
+        Assert.assertTrue(request.contains("\"subject\":\"second\""));
+        Assert.assertTrue(request.contains("\"status\":\"FAIL\""));
+        Assert.assertTrue(request.contains("\"job_name\":\"say \\\"hi\\\"\\n\""));
+        Assert.assertTrue(request.contains("\"to\":[\"a@example.com\"]"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testErrorResponse() throws Exception
+    {
+        response_code = 503;
+        final List<Notification> notifications = new ArrayList<>();
+        notifications.add(new Notification(null, "first", "body", null));
+
+        new WebhookSink(getUrl()).send(notifications);
+    }
+}